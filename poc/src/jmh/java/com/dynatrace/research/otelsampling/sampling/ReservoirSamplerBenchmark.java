@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// compares adding a batch of items one by one with the skip-ahead batch insertion
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReservoirSamplerBenchmark {
+
+  @Param({"100"})
+  public int capacity;
+
+  @Param({"10000"})
+  public int batchSize;
+
+  private Long[] items;
+  private SplittableRandom random;
+
+  @Setup
+  public void setup() {
+    SplittableRandom itemRandom = new SplittableRandom(0);
+    items = new Long[batchSize];
+    for (int i = 0; i < batchSize; ++i) {
+      items[i] = itemRandom.nextLong();
+    }
+    random = new SplittableRandom(1);
+  }
+
+  private ReservoirSampler<Long> createSampler() {
+    return new ReservoirSampler<>(
+        capacity, Long::numberOfLeadingZeros, i -> 1. / (1L << i), random);
+  }
+
+  @Benchmark
+  public ReservoirSampler<Long> add() {
+    ReservoirSampler<Long> sampler = createSampler();
+    for (Long item : items) {
+      sampler.add(item);
+    }
+    return sampler;
+  }
+
+  @Benchmark
+  public ReservoirSampler<Long> addAll() {
+    ReservoirSampler<Long> sampler = createSampler();
+    sampler.addAll(items);
+    return sampler;
+  }
+}
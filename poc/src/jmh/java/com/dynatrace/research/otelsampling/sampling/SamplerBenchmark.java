@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// measures shouldSample including the trace state update of the sampling result, run with the gc
+// profiler (configured in build.gradle) to report the allocated bytes per operation
+//
+// all samplers use the sampling rate exponent 5 except the parent rate sampler for root spans,
+// which always uses 0 and therefore samples regardless of the decision parameter
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplerBenchmark {
+
+  public enum SamplerType {
+    FIXED_RATE,
+    PARENT_RATE,
+    COMPOSED
+  }
+
+  public enum ParentType {
+    ROOT,
+    CHILD
+  }
+
+  public enum Decision {
+    SAMPLED,
+    DROPPED
+  }
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+  private static final String PARENT_SPAN_ID = "0123456789abcdef";
+  private static final int SAMPLING_RATE_EXPONENT = 5;
+  private static final String NAME = "name";
+  private static final Attributes ATTRIBUTES = Attributes.empty();
+  private static final List<LinkData> PARENT_LINKS = Collections.emptyList();
+
+  @Param public SamplerType samplerType;
+
+  @Param public ParentType parentType;
+
+  @Param public RecordingMode recordingMode;
+
+  @Param public Decision decision;
+
+  private AbstractConsistentSampler sampler;
+  private Context parentContext;
+  private TraceState parentTraceState;
+
+  // returned by generateRandomLong, its number of leading zeros is the geometric random value
+  private long randomLong;
+
+  private AbstractConsistentSampler createSampler() {
+    double samplingRate = AbstractConsistentSampler.getSamplingRate(SAMPLING_RATE_EXPONENT);
+    switch (samplerType) {
+      case FIXED_RATE:
+        return new ConsistentFixedRateSampler(samplingRate) {
+          @Override
+          protected long generateRandomLong() {
+            return randomLong;
+          }
+
+          @Override
+          protected RecordingMode getRecordingMode() {
+            return recordingMode;
+          }
+
+          @Override
+          protected RandomGenerationMode getRandomGenerationMode() {
+            return RandomGenerationMode.RANDOM_LONG;
+          }
+        };
+      case PARENT_RATE:
+        return new ConsistentParentRateSampler() {
+          @Override
+          protected long generateRandomLong() {
+            return randomLong;
+          }
+
+          @Override
+          protected RecordingMode getRecordingMode() {
+            return recordingMode;
+          }
+
+          @Override
+          protected RandomGenerationMode getRandomGenerationMode() {
+            return RandomGenerationMode.RANDOM_LONG;
+          }
+        };
+      case COMPOSED:
+        return new ComposedSampler(
+            ComposedSampler.Operation.AND,
+            Arrays.asList(
+                new ConsistentFixedRateSampler(samplingRate), new ConsistentParentRateSampler())) {
+          @Override
+          protected long generateRandomLong() {
+            return randomLong;
+          }
+
+          @Override
+          protected RecordingMode getRecordingMode() {
+            return recordingMode;
+          }
+
+          @Override
+          protected RandomGenerationMode getRandomGenerationMode() {
+            return RandomGenerationMode.RANDOM_LONG;
+          }
+        };
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    int geometricRandomValue =
+        (decision == Decision.SAMPLED) ? SAMPLING_RATE_EXPONENT + 3 : SAMPLING_RATE_EXPONENT - 3;
+    randomLong = 1L << (63 - geometricRandomValue);
+    sampler = createSampler();
+    if (parentType == ParentType.ROOT) {
+      parentTraceState = TraceState.getDefault();
+      parentContext = Context.root();
+    } else {
+      parentTraceState =
+          TraceState.builder()
+              .put(
+                  AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY,
+                  Integer.toString(geometricRandomValue))
+              .put(
+                  AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY,
+                  Integer.toString(SAMPLING_RATE_EXPONENT))
+              .build();
+      parentContext =
+          Context.root()
+              .with(
+                  Span.wrap(
+                      SpanContext.create(
+                          TRACE_ID, PARENT_SPAN_ID, TraceFlags.getSampled(), parentTraceState)));
+    }
+    SamplingDecision samplingDecision =
+        sampler
+            .shouldSample(
+                parentContext, TRACE_ID, NAME, SpanKind.INTERNAL, ATTRIBUTES, PARENT_LINKS)
+            .getDecision();
+    boolean expectSampled =
+        decision == Decision.SAMPLED
+            || (samplerType == SamplerType.PARENT_RATE && parentType == ParentType.ROOT);
+    if ((samplingDecision == SamplingDecision.RECORD_AND_SAMPLE) != expectSampled) {
+      throw new IllegalStateException("unexpected sampling decision " + samplingDecision);
+    }
+  }
+
+  @Benchmark
+  public TraceState shouldSample() {
+    return sampler
+        .shouldSample(parentContext, TRACE_ID, NAME, SpanKind.INTERNAL, ATTRIBUTES, PARENT_LINKS)
+        .getUpdatedTraceState(parentTraceState);
+  }
+}
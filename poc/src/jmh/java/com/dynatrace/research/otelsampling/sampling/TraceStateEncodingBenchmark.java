@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// compares the verbose and the compact trace state encoding for a span whose parent and
+// grandparent were dropped, the tracestate header sizes of this scenario are compared by
+// TraceStateEncodingTest
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceStateEncodingBenchmark {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+  private static final String ROOT_SPAN_ID = "1111111111111111";
+  private static final String PARENT_SPAN_ID = "2222222222222222";
+
+  @Param({"VERBOSE", "COMPACT"})
+  public TraceStateEncoding encoding;
+
+  private Sampler sampler;
+  private Context parentContext;
+  private TraceState parentTraceState;
+  private TraceState traceState;
+
+  private Sampler createSampler(double samplingRatio) {
+    return new ConsistentFixedRateSampler(samplingRatio) {
+      @Override
+      protected RecordingMode getRecordingMode() {
+        return RecordingMode.ANCESTOR_LINK_AND_DISTANCE;
+      }
+
+      @Override
+      protected TraceStateEncoding getTraceStateEncoding() {
+        return encoding;
+      }
+    };
+  }
+
+  private static Context createContext(String spanId, TraceState traceState) {
+    return Context.root()
+        .with(Span.wrap(SpanContext.create(TRACE_ID, spanId, TraceFlags.getDefault(), traceState)));
+  }
+
+  private static TraceState sample(Sampler sampler, Context parentContext) {
+    TraceState parentTraceState = Span.fromContext(parentContext).getSpanContext().getTraceState();
+    return sampler
+        .shouldSample(
+            parentContext,
+            TRACE_ID,
+            "name",
+            SpanKind.INTERNAL,
+            Attributes.empty(),
+            Collections.emptyList())
+        .getUpdatedTraceState(parentTraceState);
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    sampler = createSampler(0.);
+    TraceState rootTraceState = sample(createSampler(1.), Context.root());
+    parentTraceState = sample(sampler, createContext(ROOT_SPAN_ID, rootTraceState));
+    parentContext = createContext(PARENT_SPAN_ID, parentTraceState);
+    traceState = sample(sampler, parentContext);
+  }
+
+  @Benchmark
+  public TraceState encode() {
+    SamplingResult samplingResult =
+        sampler.shouldSample(
+            parentContext,
+            TRACE_ID,
+            "name",
+            SpanKind.INTERNAL,
+            Attributes.empty(),
+            Collections.emptyList());
+    return samplingResult.getUpdatedTraceState(parentTraceState);
+  }
+
+  @Benchmark
+  public SamplingState decode() {
+    return SamplingState.fromTraceState(traceState);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.simulation;
+
+import com.dynatrace.research.otelsampling.exporter.ConsumingSpanExporter;
+import com.dynatrace.research.otelsampling.sampling.ConsistentFixedRateSampler;
+import com.dynatrace.research.otelsampling.simulation.InstrumentedService.CallContext;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// compares the throughput of concurrent calls with and without a thread that reconfigures the
+// sampler every 100 microseconds, the call throughput of both groups is expected to be the same
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplerReconfigurationBenchmark {
+
+  private static final int NUM_CALLING_THREADS = 3;
+  private static final long RECONFIGURATION_INTERVAL_MICROS = 100;
+
+  private final Sampler sampler1 = new ConsistentFixedRateSampler(0.25);
+  private final Sampler sampler2 = new ConsistentFixedRateSampler(0.125);
+
+  private final InstrumentedServiceImpl instrumentedService =
+      new InstrumentedServiceImpl("id", 0, new ConsumingSpanExporter(s -> {}));
+
+  private boolean useSampler1;
+
+  private void call() {
+    try (CallContext callContext = instrumentedService.call(null)) {
+      /* empty by purpose */
+    }
+  }
+
+  private void reconfigure() throws InterruptedException {
+    // sleeping leaves the CPU to the calling threads, so only the effect of swapping is measured
+    TimeUnit.MICROSECONDS.sleep(RECONFIGURATION_INTERVAL_MICROS);
+    useSampler1 = !useSampler1;
+    instrumentedService.setSampler(useSampler1 ? sampler1 : sampler2);
+  }
+
+  @Benchmark
+  @Group("steady")
+  @GroupThreads(NUM_CALLING_THREADS)
+  public void steadyCall() {
+    call();
+  }
+
+  @Benchmark
+  @Group("reconfiguring")
+  @GroupThreads(NUM_CALLING_THREADS)
+  public void reconfiguringCall() {
+    call();
+  }
+
+  @Benchmark
+  @Group("reconfiguring")
+  @GroupThreads(1)
+  public void reconfiguringSetSampler() throws InterruptedException {
+    reconfigure();
+  }
+}
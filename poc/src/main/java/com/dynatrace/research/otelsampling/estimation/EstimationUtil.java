@@ -30,10 +30,12 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import com.dynatrace.research.otelsampling.sampling.RecordingMode;
 import com.dynatrace.research.otelsampling.sampling.SamplingUtil;
+import com.dynatrace.research.otelsampling.sampling.SpanTable;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 public final class EstimationUtil {
@@ -65,24 +67,29 @@ public final class EstimationUtil {
     // check if all spans belong to the same trace
     checkArgument(spanData.stream().map(SpanData::getTraceId).distinct().count() == 1);
 
+    // the span table is built once per trace, the tables of all levels are derived from it
+    SpanTable spanTable = new SpanTable(spanData);
+
     Map<T, Double> q = new HashMap<>();
     Map<T, Double> qPrev = new HashMap<>();
     Map<T, Double> qPrevFinal = qPrev;
-    vectorQuantityExtractor.extract(spanData, (key, quantity) -> qPrevFinal.put(key, quantity));
+    vectorQuantityExtractor.extract(spanTable, (key, quantity) -> qPrevFinal.put(key, quantity));
+    Iterator<SpanTable> levels =
+        SamplingUtil.downSampleAllLevels(spanTable, recordingMode).iterator();
     while (true) {
-      final double v =
-          spanData.stream().mapToDouble(SamplingUtil::getSamplingRatio).min().getAsDouble();
+      final double v = getMinimumSamplingRatio(spanTable);
       final double vReciprocal = 1. / v;
 
-      spanData = SamplingUtil.downSample(spanData, v, recordingMode);
+      // each level is the down-sampled previous one with threshold v
+      spanTable = levels.next();
 
-      if (spanData.isEmpty()) {
+      if (spanTable.size() == 0) {
         qPrev.forEach((key, qPrevElement) -> q.merge(key, qPrevElement * vReciprocal, Double::sum));
         return q;
       }
 
       Map<T, Double> qNext = new HashMap<>();
-      vectorQuantityExtractor.extract(spanData, (key, quantity) -> qNext.put(key, quantity));
+      vectorQuantityExtractor.extract(spanTable, (key, quantity) -> qNext.put(key, quantity));
 
       Map<T, Double> qDifferences = qPrev;
       qNext.forEach(
@@ -94,4 +101,12 @@ public final class EstimationUtil {
       qPrev = qNext;
     }
   }
+
+  private static double getMinimumSamplingRatio(SpanTable spanTable) {
+    double result = spanTable.getSamplingRatio(0);
+    for (int i = 1; i < spanTable.size(); ++i) {
+      result = Math.min(result, spanTable.getSamplingRatio(i));
+    }
+    return result;
+  }
 }
@@ -27,13 +27,10 @@
 package com.dynatrace.research.otelsampling.estimation;
 
 import static java.util.Objects.requireNonNull;
-import static java.util.function.Function.identity;
-import static java.util.stream.Collectors.toMap;
 
-import com.dynatrace.research.otelsampling.sampling.SamplingUtil;
+import com.dynatrace.research.otelsampling.sampling.SpanTable;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import java.util.Collection;
-import java.util.Map;
 import java.util.function.Predicate;
 
 public class ParentChildRelationshipCounter implements ScalarQuantityExtractor {
@@ -49,20 +46,22 @@ public class ParentChildRelationshipCounter implements ScalarQuantityExtractor {
 
   @Override
   public double extract(Collection<? extends SpanData> spanData) {
-    Map<String, SpanData> spanIndex =
-        spanData.stream().collect(toMap(SpanData::getSpanId, identity()));
+    return extract(new SpanTable(spanData));
+  }
 
+  @Override
+  public double extract(SpanTable spanTable) {
     long result = 0;
-    for (SpanData span : spanData) {
-      if (!childSpanMatcher.test(span)) continue;
+    for (int i = 0; i < spanTable.size(); ++i) {
+      if (!childSpanMatcher.test(spanTable.getSpanData(i))) continue;
 
-      SpanData parentSpan = spanIndex.get(SamplingUtil.getAncestorSpanId(span));
-      while (parentSpan != null) {
-        if (parentSpanMatcher.test(parentSpan)) {
+      int parentIndex = spanTable.getAncestorIndex(i);
+      while (parentIndex != SpanTable.NO_INDEX) {
+        if (parentSpanMatcher.test(spanTable.getSpanData(parentIndex))) {
           result += 1;
           break;
         }
-        parentSpan = spanIndex.get(SamplingUtil.getAncestorSpanId(parentSpan));
+        parentIndex = spanTable.getAncestorIndex(parentIndex);
       }
     }
     return result;
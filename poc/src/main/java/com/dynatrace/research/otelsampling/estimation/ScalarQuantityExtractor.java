@@ -26,6 +26,7 @@
  */
 package com.dynatrace.research.otelsampling.estimation;
 
+import com.dynatrace.research.otelsampling.sampling.SpanTable;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import java.util.Collection;
 import java.util.function.Predicate;
@@ -39,6 +40,17 @@ public interface ScalarQuantityExtractor {
    */
   double extract(Collection<? extends SpanData> spanData);
 
+  /**
+   * Extracts the quantity from a span table. Extractors that need to relate spans to each other
+   * should override this method to reuse the span table, which is shared by all extractors.
+   *
+   * @param spanTable span table of spans belonging to the same trace
+   * @return the extracted quantity
+   */
+  default double extract(SpanTable spanTable) {
+    return extract(spanTable.getSpans());
+  }
+
   static ScalarQuantityExtractor countMatchingSpans(Predicate<? super SpanData> spanPredicate) {
     return spanData -> spanData.stream().filter(spanPredicate).count();
   }
@@ -26,6 +26,7 @@
  */
 package com.dynatrace.research.otelsampling.estimation;
 
+import com.dynatrace.research.otelsampling.sampling.SpanTable;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import java.util.Collection;
 import java.util.Map;
@@ -41,6 +42,15 @@ public interface VectorQuantityExtractor<T> {
    */
   void extract(Collection<SpanData> spanData, ObjDoubleConsumer<T> keyQuantityConsumer);
 
+  /**
+   * @param spanTable span table of spans belonging to the same trace
+   * @param keyQuantityConsumer consumer for (key, quantity value)-pairs, must only be called once
+   *     per key
+   */
+  default void extract(SpanTable spanTable, ObjDoubleConsumer<T> keyQuantityConsumer) {
+    extract(spanTable.getSpans(), keyQuantityConsumer);
+  }
+
   /**
    * Composes a vector quantity extractor from multiple scalar extractors.
    *
@@ -50,8 +60,18 @@ public interface VectorQuantityExtractor<T> {
    */
   static <T> VectorQuantityExtractor<T> of(
       Map<T, ScalarQuantityExtractor> scalarQuantityExtractors) {
-    return (spanData, keyQuantityConsumer) ->
+    return new VectorQuantityExtractor<T>() {
+      @Override
+      public void extract(Collection<SpanData> spanData, ObjDoubleConsumer<T> keyQuantityConsumer) {
         scalarQuantityExtractors.forEach(
             (key, extractor) -> keyQuantityConsumer.accept(key, extractor.extract(spanData)));
+      }
+
+      @Override
+      public void extract(SpanTable spanTable, ObjDoubleConsumer<T> keyQuantityConsumer) {
+        scalarQuantityExtractors.forEach(
+            (key, extractor) -> keyQuantityConsumer.accept(key, extractor.extract(spanTable)));
+      }
+    };
   }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.exporter;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.Sample;
+import com.dynatrace.research.otelsampling.sampling.SamplingUtil;
+import com.dynatrace.research.otelsampling.sampling.WindowedReservoirSampler;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A span processor that keeps a reservoir sample of the spans ended within a time window. At the
+ * end of each window the samples are taken and the reservoir is reset, and the samples of the
+ * closed window are exported on a background thread. Hence, the number of exported spans per window
+ * is limited by the capacity of the reservoir. Ending a span is wait-free, because every thread
+ * adds to its own reservoirs, which are merged when the window is closed.
+ *
+ * <p>The greatest sample rate index of a span is its geometric random value, which makes the
+ * selection consistent for all spans of a trace.
+ */
+public class ReservoirSpanProcessor implements SpanProcessor {
+
+  private final SpanExporter spanExporter;
+  private final WindowedReservoirSampler<SpanData> reservoir;
+  private final ScheduledExecutorService executorService;
+
+  public ReservoirSpanProcessor(
+      SpanExporter spanExporter, int capacity, long windowDuration, TimeUnit timeUnit) {
+    checkArgument(windowDuration > 0);
+    this.spanExporter = requireNonNull(spanExporter);
+    this.reservoir =
+        new WindowedReservoirSampler<>(
+            capacity,
+            SamplingUtil::getGeometricRandomValue,
+            i -> Math.scalb(1., -i),
+            new SplittableRandom());
+    this.executorService =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "ReservoirSpanProcessor");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executorService.scheduleAtFixedRate(
+        this::closeWindow, windowDuration, windowDuration, timeUnit);
+  }
+
+  // closes the current window and exports its samples, a span that ends concurrently is either
+  // part of the closed window or of the next one
+  private synchronized CompletableResultCode closeWindow() {
+    Collection<Sample<SpanData>> samples = reservoir.getSamplesAndReset();
+    if (samples.isEmpty()) {
+      return CompletableResultCode.ofSuccess();
+    }
+    return exportSamples(samples);
+  }
+
+  /**
+   * Exports the samples of a closed window. The default implementation passes the span data to the
+   * span exporter, subclasses may override this method to make use of the sample rate indices.
+   *
+   * @param samples the samples of the closed window
+   * @return the result of the export
+   */
+  protected CompletableResultCode exportSamples(Collection<Sample<SpanData>> samples) {
+    List<SpanData> spans = new ArrayList<>(samples.size());
+    samples.forEach(sample -> spans.add(sample.getItem()));
+    return spanExporter.export(spans);
+  }
+
+  @Override
+  public void onStart(Context parentContext, ReadWriteSpan span) {}
+
+  @Override
+  public boolean isStartRequired() {
+    return false;
+  }
+
+  @Override
+  public void onEnd(ReadableSpan span) {
+    SpanContext spanContext = span.getSpanContext();
+    // the span data is only created for spans that are not dropped by the reservoir right away
+    if (spanContext.isSampled()
+        && reservoir.mayAccept(SamplingUtil.getGeometricRandomValue(spanContext))) {
+      reservoir.add(span.toSpanData());
+    }
+  }
+
+  @Override
+  public boolean isEndRequired() {
+    return true;
+  }
+
+  @Override
+  public CompletableResultCode forceFlush() {
+    if (executorService.isShutdown()) {
+      return CompletableResultCode.ofSuccess();
+    }
+    CompletableResultCode result = new CompletableResultCode();
+    executorService.execute(
+        () -> {
+          CompletableResultCode exportResult = closeWindow();
+          exportResult.whenComplete(
+              () -> {
+                if (exportResult.isSuccess()) {
+                  result.succeed();
+                } else {
+                  result.fail();
+                }
+              });
+        });
+    return result;
+  }
+
+  @Override
+  public CompletableResultCode shutdown() {
+    executorService.shutdown();
+    CompletableResultCode exportResult = closeWindow();
+    CompletableResultCode result = new CompletableResultCode();
+    exportResult.whenComplete(
+        () ->
+            spanExporter
+                .shutdown()
+                .whenComplete(
+                    () -> {
+                      if (exportResult.isSuccess()) {
+                        result.succeed();
+                      } else {
+                        result.fail();
+                      }
+                    }));
+    return result;
+  }
+}
@@ -27,8 +27,11 @@
 package com.dynatrace.research.otelsampling.sampling;
 
 import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.internal.OtelEncodingUtils;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanId;
 import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceId;
 import io.opentelemetry.api.trace.TraceState;
 import io.opentelemetry.api.trace.TraceStateBuilder;
 import io.opentelemetry.context.Context;
@@ -38,6 +41,8 @@ import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
 import io.opentelemetry.sdk.trace.samplers.SamplingResult;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import javax.annotation.CheckForNull;
 
 public abstract class AbstractConsistentSampler implements Sampler {
 
@@ -49,17 +54,106 @@ public abstract class AbstractConsistentSampler implements Sampler {
   public static final String NUMBER_DROPPED_ANCESTORS_KEY = "number-dropped-ancestors";
   public static final String SAMPLED_ANCESTOR_SPAN_ID_KEY = "sampled-ancestor-span-id";
 
+  // single key used instead of the keys above for TraceStateEncoding.COMPACT, the value has the
+  // layout RRPP[-N][.AAAAAAAAAAAAAAAA] with the geometric random value RR ("--" if not
+  // propagated) and the sampling rate exponent PP as 2 hex digits each, the number of dropped
+  // ancestors N in hex, and the sampled ancestor span ID AAAAAAAAAAAAAAAA
+  public static final String COMPACT_SAMPLING_STATE_KEY = "cs";
+
+  private static final String[] SMALL_INTEGER_STRINGS =
+      IntStream.rangeClosed(0, 63).mapToObj(Integer::toString).toArray(String[]::new);
+
+  // immutable sampling results are shared across calls to avoid allocations on the hot path
+  // they are created lazily, which is thread-safe as all their fields are final
+  // SAMPLED_RESULTS[encoding][geometricRandomValue + 1][samplingRateExponent] for
+  // samplingRateExponent <= geometricRandomValue, where a geometric random value of -1 means that
+  // it is not propagated
+  private static final SamplingResult[] SAMPLED_RESULTS =
+      new SamplingResult[TraceStateEncoding.values().length << 12];
+
+  // DROPPED_RESULTS[encoding][recordingMode][geometricRandomValue + 1][samplingRateExponent] for
+  // samplingRateExponent > geometricRandomValue, using an invalid span ID as fallback for the
+  // sampled ancestor span ID, which is the parent span ID for root spans
+  private static final SamplingResult[] DROPPED_RESULTS =
+      new SamplingResult
+          [(TraceStateEncoding.values().length * RecordingMode.values().length) << 12];
+
+  private static SamplingResult getSampledResult(
+      TraceStateEncoding encoding, int geometricRandomValue, int samplingRateExponent) {
+    int index =
+        (encoding.ordinal() << 12) | ((geometricRandomValue + 1) << 6) | samplingRateExponent;
+    SamplingResult result = SAMPLED_RESULTS[index];
+    if (result == null) {
+      result = new SampledSamplingResult(encoding, geometricRandomValue, samplingRateExponent);
+      SAMPLED_RESULTS[index] = result;
+    }
+    return result;
+  }
+
+  private static SamplingResult getDroppedResult(
+      TraceStateEncoding encoding,
+      RecordingMode recordingMode,
+      int geometricRandomValue,
+      int samplingRateExponent) {
+    int index =
+        ((encoding.ordinal() * RecordingMode.values().length + recordingMode.ordinal()) << 12)
+            | ((geometricRandomValue + 1) << 6)
+            | samplingRateExponent;
+    SamplingResult result = DROPPED_RESULTS[index];
+    if (result == null) {
+      result =
+          new DroppedSamplingResult(
+              encoding,
+              geometricRandomValue,
+              samplingRateExponent,
+              recordingMode,
+              SpanId.getInvalid(),
+              null);
+      DROPPED_RESULTS[index] = result;
+    }
+    return result;
+  }
+
   protected boolean generateRandomBit() {
     return ThreadLocalRandom.current().nextBoolean();
   }
 
+  protected long generateRandomLong() {
+    return ThreadLocalRandom.current().nextLong();
+  }
+
   protected RecordingMode getRecordingMode() {
     return RecordingMode.ANCESTOR_LINK_AND_DISTANCE;
   }
 
+  protected RandomGenerationMode getRandomGenerationMode() {
+    return RandomGenerationMode.RANDOM_BITS;
+  }
+
+  protected TraceStateEncoding getTraceStateEncoding() {
+    return TraceStateEncoding.VERBOSE;
+  }
+
+  // must return true if getSamplingRateExponent has side effects like counting the spans, composed
+  // samplers then evaluate this sampler even if its result cannot change the combined result
+  protected boolean hasSideEffects() {
+    return false;
+  }
+
+  // sampling decisions are only recorded if metrics are returned
+  @CheckForNull
+  protected SamplingMetrics getSamplingMetrics() {
+    return null;
+  }
+
   // returns a random value from a geometric distribution with a success probability of 0.5 and
   // minimum value 0 that is clipped at 62
   private int generateGeometricRandomValue() {
+    if (getRandomGenerationMode() == RandomGenerationMode.RANDOM_LONG) {
+      // the number of leading zeros of a uniformly distributed long value is k with probability
+      // 2^-(k+1) for k < 64
+      return Math.min(Long.numberOfLeadingZeros(generateRandomLong()), 62);
+    }
     int count = 0;
     while (count < 62 && generateRandomBit()) {
       count += 1;
@@ -67,32 +161,30 @@ public abstract class AbstractConsistentSampler implements Sampler {
     return count;
   }
 
-  protected int getGeometricRandomValueFromParentContextOrGenerate(Context parentContext) {
-    Span parentSpan = Span.fromContext(parentContext);
-    String geometricRandomValueAsString =
-        parentSpan.getSpanContext().getTraceState().get(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY);
-    if (geometricRandomValueAsString != null) {
-      int geometricRandomValue =
-          Integer.parseInt(geometricRandomValueAsString); // TODO exception handling
-      if (geometricRandomValue >= 0 && geometricRandomValue <= 62) {
-        return geometricRandomValue;
-      }
+  // returns the number of trailing zeros of the least significant 64 bits of the trace ID clipped
+  // at 62, which has the same distribution as a generated value if the trace ID is random
+  // values smaller than 56 only depend on the rightmost 7 bytes of the trace ID, which are
+  // required to be random by the W3C Trace Context Level 2 specification
+  static int getGeometricRandomValueFromTraceId(String traceId) {
+    long randomBits =
+        OtelEncodingUtils.longFromBase16String(traceId, TraceId.getLength() - SpanId.getLength());
+    return Math.min(Long.numberOfTrailingZeros(randomBits), 62);
+  }
+
+  protected int getGeometricRandomValueFromParentOrGenerate(SamplingState parentSamplingState) {
+    int geometricRandomValue = parentSamplingState.getGeometricRandomValue();
+    if (geometricRandomValue != SamplingState.UNKNOWN_GEOMETRIC_RANDOM_VALUE) {
+      return geometricRandomValue;
     }
     return generateGeometricRandomValue();
   }
 
+  protected int getGeometricRandomValueFromParentContextOrGenerate(Context parentContext) {
+    return getGeometricRandomValueFromParentOrGenerate(SamplingState.fromContext(parentContext));
+  }
+
   protected int getParentSamplingRateExponentFromParentContext(Context parentContext) {
-    Span parentSpan = Span.fromContext(parentContext);
-    String pow2ParentSamplingRateAsString =
-        parentSpan.getSpanContext().getTraceState().get(SAMPLING_RATE_EXPONENT_KEY);
-    if (pow2ParentSamplingRateAsString != null) {
-      int parentSamplingRateExponent =
-          Integer.parseInt(pow2ParentSamplingRateAsString); // TODO exception handling
-      if (parentSamplingRateExponent >= 0 && parentSamplingRateExponent <= 63) {
-        return parentSamplingRateExponent;
-      }
-    }
-    return SAMPLING_UNKNOWN_RATE_EXPONENT;
+    return SamplingState.fromContext(parentContext).getSamplingRateExponent();
   }
 
   @Override
@@ -104,87 +196,253 @@ public abstract class AbstractConsistentSampler implements Sampler {
       Attributes attributes,
       List<LinkData> parentLinks) {
 
+    final SamplingMetrics samplingMetrics = getSamplingMetrics();
+    final long startNanos = (samplingMetrics != null) ? System.nanoTime() : 0L;
+
+    // the trace state of the parent is parsed at most once per span, or not at all if the parsed
+    // sampling state has already been stored in the parent context
+    final SamplingState parentSamplingState = SamplingState.fromContext(parentContext);
+
+    final boolean isGeometricRandomValueDerivedFromTraceId =
+        getRandomGenerationMode() == RandomGenerationMode.TRACE_ID;
+
     final int geometricRandomValue =
-        getGeometricRandomValueFromParentContextOrGenerate(parentContext);
+        isGeometricRandomValueDerivedFromTraceId
+            ? getGeometricRandomValueFromTraceId(traceId)
+            : getGeometricRandomValueFromParentOrGenerate(parentSamplingState);
 
     final int samplingRateExponent =
-        getSamplingRateExponent(parentContext, traceId, name, spanKind, attributes, parentLinks);
+        getSamplingRateExponent(
+            parentContext, parentSamplingState, traceId, name, spanKind, attributes, parentLinks);
 
     RecordingMode recordingMode = getRecordingMode();
 
+    TraceStateEncoding encoding = getTraceStateEncoding();
+
     boolean samplingDecision = geometricRandomValue >= samplingRateExponent;
 
+    final int propagatedGeometricRandomValue =
+        isGeometricRandomValueDerivedFromTraceId
+            ? SamplingState.UNKNOWN_GEOMETRIC_RANDOM_VALUE
+            : geometricRandomValue;
+
+    SamplingResult samplingResult;
     if (samplingDecision) {
-      return new SamplingResult() {
+      samplingResult =
+          getSampledResult(encoding, propagatedGeometricRandomValue, samplingRateExponent);
+    } else {
+      String parentSpanId = Span.fromContext(parentContext).getSpanContext().getSpanId();
+      if (!recordingMode.collectAncestorLink() || SpanId.getInvalid().equals(parentSpanId)) {
+        // the parent span ID is not needed or equal to the precomputed fallback
+        samplingResult =
+            getDroppedResult(
+                encoding, recordingMode, propagatedGeometricRandomValue, samplingRateExponent);
+      } else {
+        samplingResult =
+            new DroppedSamplingResult(
+                encoding,
+                propagatedGeometricRandomValue,
+                samplingRateExponent,
+                recordingMode,
+                parentSpanId,
+                parentSamplingState);
+      }
+    }
 
-        @Override
-        public SamplingDecision getDecision() {
-          return SamplingDecision.RECORD_AND_SAMPLE;
-        }
+    if (samplingMetrics != null) {
+      samplingMetrics.record(
+          samplingRateExponent,
+          samplingDecision,
+          !Span.fromContext(parentContext).getSpanContext().isValid(),
+          recordingMode,
+          System.nanoTime() - startNanos);
+    }
+    return samplingResult;
+  }
 
-        @Override
-        public Attributes getAttributes() {
-          return Attributes.empty();
-        }
+  // returns a cached string representation for small values to avoid allocations
+  private static String toTraceStateValue(long value) {
+    if (value >= 0 && value < SMALL_INTEGER_STRINGS.length) {
+      return SMALL_INTEGER_STRINGS[(int) value];
+    } else {
+      return Long.toString(value);
+    }
+  }
 
-        @Override
-        public TraceState getUpdatedTraceState(TraceState parentTraceState) {
-          TraceStateBuilder builder = parentTraceState.toBuilder();
-          builder.put(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, Integer.toString(geometricRandomValue));
-          builder.put(SAMPLING_RATE_EXPONENT_KEY, Integer.toString(samplingRateExponent));
-          builder.remove(NUMBER_DROPPED_ANCESTORS_KEY);
-          builder.remove(SAMPLED_ANCESTOR_SPAN_ID_KEY);
-          return builder.build();
-        }
-      };
+  private static void putGeometricRandomValue(
+      TraceStateBuilder builder, @CheckForNull String geometricRandomValue) {
+    if (geometricRandomValue != null) {
+      builder.put(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, geometricRandomValue);
     } else {
+      builder.remove(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY);
+    }
+  }
 
-      String parentSpanId = Span.fromContext(parentContext).getSpanContext().getSpanId();
+  private static void removeVerboseEntries(TraceStateBuilder builder) {
+    builder.remove(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY);
+    builder.remove(SAMPLING_RATE_EXPONENT_KEY);
+    builder.remove(NUMBER_DROPPED_ANCESTORS_KEY);
+    builder.remove(SAMPLED_ANCESTOR_SPAN_ID_KEY);
+  }
 
-      return new SamplingResult() {
+  private static boolean hasNoVerboseEntries(TraceState traceState) {
+    return traceState.get(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY) == null
+        && traceState.get(SAMPLING_RATE_EXPONENT_KEY) == null
+        && traceState.get(NUMBER_DROPPED_ANCESTORS_KEY) == null
+        && traceState.get(SAMPLED_ANCESTOR_SPAN_ID_KEY) == null;
+  }
 
-        @Override
-        public SamplingDecision getDecision() {
-          return SamplingDecision.DROP;
-        }
+  private static final class SampledSamplingResult implements SamplingResult {
 
-        @Override
-        public Attributes getAttributes() {
-          return Attributes.empty();
+    private final TraceStateEncoding encoding;
+    // null, if the geometric random value is not propagated
+    @CheckForNull private final String geometricRandomValue;
+    private final String samplingRateExponent;
+    private final String compactSamplingState;
+
+    private SampledSamplingResult(
+        TraceStateEncoding encoding, int geometricRandomValue, int samplingRateExponent) {
+      this.encoding = encoding;
+      this.geometricRandomValue =
+          (geometricRandomValue >= 0) ? toTraceStateValue(geometricRandomValue) : null;
+      this.samplingRateExponent = toTraceStateValue(samplingRateExponent);
+      this.compactSamplingState =
+          CompactSamplingStateFormat.format(geometricRandomValue, samplingRateExponent, 0, null);
+    }
+
+    @Override
+    public SamplingDecision getDecision() {
+      return SamplingDecision.RECORD_AND_SAMPLE;
+    }
+
+    @Override
+    public Attributes getAttributes() {
+      return Attributes.empty();
+    }
+
+    @Override
+    public TraceState getUpdatedTraceState(TraceState parentTraceState) {
+      // return the parent trace state if it would not change, which is the common case for sampled
+      // child spans
+      if (encoding == TraceStateEncoding.COMPACT) {
+        if (compactSamplingState.equals(parentTraceState.get(COMPACT_SAMPLING_STATE_KEY))
+            && hasNoVerboseEntries(parentTraceState)) {
+          return parentTraceState;
+        }
+        TraceStateBuilder builder = parentTraceState.toBuilder();
+        removeVerboseEntries(builder);
+        builder.put(COMPACT_SAMPLING_STATE_KEY, compactSamplingState);
+        return builder.build();
+      } else {
+        if (Objects.equals(
+                geometricRandomValue, parentTraceState.get(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY))
+            && samplingRateExponent.equals(parentTraceState.get(SAMPLING_RATE_EXPONENT_KEY))
+            && parentTraceState.get(NUMBER_DROPPED_ANCESTORS_KEY) == null
+            && parentTraceState.get(SAMPLED_ANCESTOR_SPAN_ID_KEY) == null
+            && parentTraceState.get(COMPACT_SAMPLING_STATE_KEY) == null) {
+          return parentTraceState;
         }
+        TraceStateBuilder builder = parentTraceState.toBuilder();
+        builder.remove(COMPACT_SAMPLING_STATE_KEY);
+        putGeometricRandomValue(builder, geometricRandomValue);
+        builder.put(SAMPLING_RATE_EXPONENT_KEY, samplingRateExponent);
+        builder.remove(NUMBER_DROPPED_ANCESTORS_KEY);
+        builder.remove(SAMPLED_ANCESTOR_SPAN_ID_KEY);
+        return builder.build();
+      }
+    }
+  }
+
+  private static final class DroppedSamplingResult implements SamplingResult {
+
+    private final TraceStateEncoding encoding;
+    // negative, if the geometric random value is not propagated
+    private final int geometricRandomValue;
+    private final int samplingRateExponent;
+    private final RecordingMode recordingMode;
+    private final String parentSpanId;
+    // the already parsed sampling state of the parent, if available
+    @CheckForNull private final SamplingState parentSamplingState;
+
+    private DroppedSamplingResult(
+        TraceStateEncoding encoding,
+        int geometricRandomValue,
+        int samplingRateExponent,
+        RecordingMode recordingMode,
+        String parentSpanId,
+        @CheckForNull SamplingState parentSamplingState) {
+      this.encoding = encoding;
+      this.geometricRandomValue = geometricRandomValue;
+      this.samplingRateExponent = samplingRateExponent;
+      this.recordingMode = recordingMode;
+      this.parentSpanId = parentSpanId;
+      this.parentSamplingState = parentSamplingState;
+    }
+
+    @Override
+    public SamplingDecision getDecision() {
+      return SamplingDecision.DROP;
+    }
 
-        @Override
-        public TraceState getUpdatedTraceState(TraceState parentTraceState) {
-
-          TraceStateBuilder builder = parentTraceState.toBuilder();
-          builder.put(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, Integer.toString(geometricRandomValue));
-          builder.put(SAMPLING_RATE_EXPONENT_KEY, Integer.toString(samplingRateExponent));
-
-          if (recordingMode.collectAncestorDistance()) {
-            String numberDroppedParentsAsString =
-                parentTraceState.get(NUMBER_DROPPED_ANCESTORS_KEY);
-            long numberDroppedAncestors =
-                (numberDroppedParentsAsString != null)
-                    ? Long.parseLong(numberDroppedParentsAsString)
-                    : 0;
-            builder.put(NUMBER_DROPPED_ANCESTORS_KEY, Long.toString(numberDroppedAncestors + 1));
-          } else {
-            builder.remove(NUMBER_DROPPED_ANCESTORS_KEY);
-          }
-
-          if (recordingMode.collectAncestorLink()) {
-            String sampledAncestorSpanId = parentTraceState.get(SAMPLED_ANCESTOR_SPAN_ID_KEY);
-            if (sampledAncestorSpanId == null) {
-              sampledAncestorSpanId = parentSpanId;
-            }
-            builder.put(SAMPLED_ANCESTOR_SPAN_ID_KEY, sampledAncestorSpanId);
-          } else {
-            builder.remove(SAMPLED_ANCESTOR_SPAN_ID_KEY);
-          }
-
-          return builder.build();
+    @Override
+    public Attributes getAttributes() {
+      return Attributes.empty();
+    }
+
+    @Override
+    public TraceState getUpdatedTraceState(TraceState parentTraceState) {
+
+      SamplingState parentSamplingState =
+          (this.parentSamplingState != null
+                  && this.parentSamplingState.isParsedFrom(parentTraceState))
+              ? this.parentSamplingState
+              : SamplingState.fromTraceState(parentTraceState);
+
+      long numberDroppedAncestors =
+          recordingMode.collectAncestorDistance()
+              ? parentSamplingState.getNumberDroppedAncestors() + 1
+              : 0;
+
+      String sampledAncestorSpanId = null;
+      if (recordingMode.collectAncestorLink()) {
+        sampledAncestorSpanId = parentSamplingState.getSampledAncestorSpanId();
+        if (sampledAncestorSpanId == null) {
+          sampledAncestorSpanId = parentSpanId;
         }
-      };
+      }
+
+      TraceStateBuilder builder = parentTraceState.toBuilder();
+
+      if (encoding == TraceStateEncoding.COMPACT) {
+        removeVerboseEntries(builder);
+        builder.put(
+            COMPACT_SAMPLING_STATE_KEY,
+            CompactSamplingStateFormat.format(
+                geometricRandomValue,
+                samplingRateExponent,
+                numberDroppedAncestors,
+                sampledAncestorSpanId));
+        return builder.build();
+      }
+
+      builder.remove(COMPACT_SAMPLING_STATE_KEY);
+      putGeometricRandomValue(
+          builder, (geometricRandomValue >= 0) ? toTraceStateValue(geometricRandomValue) : null);
+      builder.put(SAMPLING_RATE_EXPONENT_KEY, toTraceStateValue(samplingRateExponent));
+
+      if (recordingMode.collectAncestorDistance()) {
+        builder.put(NUMBER_DROPPED_ANCESTORS_KEY, toTraceStateValue(numberDroppedAncestors));
+      } else {
+        builder.remove(NUMBER_DROPPED_ANCESTORS_KEY);
+      }
+
+      if (recordingMode.collectAncestorLink()) {
+        builder.put(SAMPLED_ANCESTOR_SPAN_ID_KEY, sampledAncestorSpanId);
+      } else {
+        builder.remove(SAMPLED_ANCESTOR_SPAN_ID_KEY);
+      }
+
+      return builder.build();
     }
   }
 
@@ -204,6 +462,21 @@ public abstract class AbstractConsistentSampler implements Sampler {
       Attributes attributes,
       List<LinkData> parentLinks);
 
+  // called by shouldSample with the sampling state of the parent, which has already been parsed
+  // there, samplers that need the parent sampling state should override this method to avoid
+  // parsing the parent trace state again, by default it ignores the sampling state and calls the
+  // method above
+  protected int getSamplingRateExponent(
+      Context parentContext,
+      SamplingState parentSamplingState,
+      String traceId,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes,
+      List<LinkData> parentLinks) {
+    return getSamplingRateExponent(parentContext, traceId, name, spanKind, attributes, parentLinks);
+  }
+
   protected static double getSamplingRate(int samplingRateExponent) {
     if (samplingRateExponent < 0 || samplingRateExponent > 63) {
       throw new IllegalArgumentException("Sampling rate exponent must be in the range [0, 63]!");
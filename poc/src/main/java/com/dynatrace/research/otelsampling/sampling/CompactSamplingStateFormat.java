@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import javax.annotation.CheckForNull;
+
+// formats and parses the value of the compact sampling state trace state entry
+//
+// layout: RRPP[-N][.AAAAAAAAAAAAAAAA]
+//  RR: geometric random value as 2 hex digits, or "--" if it is not propagated
+//  PP: sampling rate exponent as 2 hex digits
+//  N: number of dropped ancestors as 1 to 16 hex digits, omitted if 0
+//  AAAAAAAAAAAAAAAA: span ID of the sampled ancestor, omitted if the parent is sampled
+//
+// parsing never throws, invalid fields are treated as missing
+final class CompactSamplingStateFormat {
+
+  private static final char NOT_PROPAGATED = '-';
+  private static final char NUMBER_DROPPED_ANCESTORS_SEPARATOR = '-';
+  private static final char SAMPLED_ANCESTOR_SPAN_ID_SEPARATOR = '.';
+  private static final int SPAN_ID_LENGTH = 16;
+  private static final int MAX_NUMBER_DROPPED_ANCESTORS_LENGTH = 16;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private CompactSamplingStateFormat() {}
+
+  /**
+   * @param geometricRandomValue the geometric random value, or a negative value if it is not
+   *     propagated
+   * @param samplingRateExponent the sampling rate exponent in the range [0, 63]
+   * @param numberDroppedAncestors the number of dropped ancestors
+   * @param sampledAncestorSpanId the span ID of the sampled ancestor consisting of 16 lower-case
+   *     hex digits, or null
+   * @return the compact representation
+   */
+  static String format(
+      int geometricRandomValue,
+      int samplingRateExponent,
+      long numberDroppedAncestors,
+      @CheckForNull String sampledAncestorSpanId) {
+    char[] chars = new char[4 + 1 + MAX_NUMBER_DROPPED_ANCESTORS_LENGTH + 1 + SPAN_ID_LENGTH];
+    if (geometricRandomValue >= 0) {
+      chars[0] = HEX_DIGITS[(geometricRandomValue >>> 4) & 0xf];
+      chars[1] = HEX_DIGITS[geometricRandomValue & 0xf];
+    } else {
+      chars[0] = NOT_PROPAGATED;
+      chars[1] = NOT_PROPAGATED;
+    }
+    chars[2] = HEX_DIGITS[(samplingRateExponent >>> 4) & 0xf];
+    chars[3] = HEX_DIGITS[samplingRateExponent & 0xf];
+    int length = 4;
+    if (numberDroppedAncestors != 0) {
+      chars[length++] = NUMBER_DROPPED_ANCESTORS_SEPARATOR;
+      int numDigits = Math.max(1, (67 - Long.numberOfLeadingZeros(numberDroppedAncestors)) >>> 2);
+      for (int shift = (numDigits - 1) << 2; shift >= 0; shift -= 4) {
+        chars[length++] = HEX_DIGITS[(int) (numberDroppedAncestors >>> shift) & 0xf];
+      }
+    }
+    if (sampledAncestorSpanId != null) {
+      chars[length++] = SAMPLED_ANCESTOR_SPAN_ID_SEPARATOR;
+      sampledAncestorSpanId.getChars(0, SPAN_ID_LENGTH, chars, length);
+      length += SPAN_ID_LENGTH;
+    }
+    return new String(chars, 0, length);
+  }
+
+  /** @return the geometric random value or a negative value if not available */
+  static int parseGeometricRandomValue(String value) {
+    if (value.length() < 4) {
+      return -1;
+    }
+    return (int) NumberParser.parseHex(value, 0, 2, 62);
+  }
+
+  /** @return the sampling rate exponent or a negative value if not available */
+  static int parseSamplingRateExponent(String value) {
+    if (value.length() < 4) {
+      return -1;
+    }
+    return (int) NumberParser.parseHex(value, 2, 4, 63);
+  }
+
+  /** @return the number of dropped ancestors, 0 if not available */
+  static long parseNumberDroppedAncestors(String value) {
+    if (value.length() < 6 || value.charAt(4) != NUMBER_DROPPED_ANCESTORS_SEPARATOR) {
+      return 0;
+    }
+    int endIndex = value.indexOf(SAMPLED_ANCESTOR_SPAN_ID_SEPARATOR, 5);
+    long numberDroppedAncestors =
+        NumberParser.parseHex(
+            value, 5, (endIndex >= 0) ? endIndex : value.length(), Long.MAX_VALUE);
+    return (numberDroppedAncestors != NumberParser.INVALID) ? numberDroppedAncestors : 0;
+  }
+
+  /** @return the span ID of the sampled ancestor, null if not available */
+  @CheckForNull
+  static String parseSampledAncestorSpanId(String value) {
+    int beginIndex = value.length() - SPAN_ID_LENGTH;
+    if (beginIndex < 5
+        || value.charAt(beginIndex - 1) != SAMPLED_ANCESTOR_SPAN_ID_SEPARATOR
+        || !NumberParser.isSpanId(value, beginIndex, value.length())) {
+      return null;
+    }
+    return value.substring(beginIndex);
+  }
+}
@@ -26,49 +26,147 @@
  */
 package com.dynatrace.research.otelsampling.sampling;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
 
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.sdk.trace.data.LinkData;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /*
- * This sampler samples if at least one of its component samplers would sample.
+ * This sampler combines the sampling rate exponents of its component samplers. With the OR
+ * operation it samples if at least one of its component samplers would sample (minimum exponent),
+ * with the AND operation only if all of them would sample (maximum exponent).
+ *
+ * Nested composed samplers with the same operation are flattened at construction, and the
+ * evaluation stops as soon as the result cannot change anymore. Component samplers with side
+ * effects, like the ConsistentRateLimitingSampler that counts the spans, are evaluated anyway.
  */
 public class ComposedSampler extends AbstractConsistentSampler {
 
-  private final AbstractConsistentSampler sampler1;
-  private final AbstractConsistentSampler sampler2;
+  public enum Operation {
+    OR,
+    AND
+  }
+
+  private final Operation operation;
+  private final AbstractConsistentSampler[] samplers;
+  private final boolean[] samplerHasSideEffects;
+  // -1, if no component sampler has side effects
+  private final int lastIndexOfSamplerWithSideEffects;
 
   public ComposedSampler(AbstractConsistentSampler sampler1, AbstractConsistentSampler sampler2) {
-    this.sampler1 = requireNonNull(sampler1);
-    this.sampler2 = requireNonNull(sampler2);
+    this(Operation.OR, Arrays.asList(sampler1, sampler2));
+  }
+
+  public ComposedSampler(Operation operation, List<? extends AbstractConsistentSampler> samplers) {
+    this.operation = requireNonNull(operation);
+    checkArgument(!samplers.isEmpty(), "At least one sampler is required!");
+    List<AbstractConsistentSampler> flattened = new ArrayList<>();
+    for (AbstractConsistentSampler sampler : samplers) {
+      addFlattened(operation, requireNonNull(sampler), flattened);
+    }
+    this.samplers = flattened.toArray(new AbstractConsistentSampler[0]);
+    this.samplerHasSideEffects = new boolean[this.samplers.length];
+    int lastIndex = -1;
+    for (int i = 0; i < this.samplers.length; ++i) {
+      if (this.samplers[i].hasSideEffects()) {
+        samplerHasSideEffects[i] = true;
+        lastIndex = i;
+      }
+    }
+    this.lastIndexOfSamplerWithSideEffects = lastIndex;
+  }
+
+  public static ComposedSampler or(AbstractConsistentSampler... samplers) {
+    return new ComposedSampler(Operation.OR, Arrays.asList(samplers));
+  }
+
+  public static ComposedSampler and(AbstractConsistentSampler... samplers) {
+    return new ComposedSampler(Operation.AND, Arrays.asList(samplers));
+  }
+
+  private static void addFlattened(
+      Operation operation,
+      AbstractConsistentSampler sampler,
+      List<AbstractConsistentSampler> flattened) {
+    // subclasses might override the composition, therefore only exact instances are flattened
+    if (sampler.getClass() == ComposedSampler.class
+        && ((ComposedSampler) sampler).operation == operation) {
+      flattened.addAll(Arrays.asList(((ComposedSampler) sampler).samplers));
+    } else {
+      flattened.add(sampler);
+    }
+  }
+
+  @Override
+  protected int getSamplingRateExponent(
+      Context parentContext,
+      String traceId,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes,
+      List<LinkData> parentLinks) {
+    return getSamplingRateExponent(
+        parentContext,
+        SamplingState.fromContext(parentContext),
+        traceId,
+        name,
+        spanKind,
+        attributes,
+        parentLinks);
   }
 
   @Override
   protected int getSamplingRateExponent(
       Context parentContext,
+      SamplingState parentSamplingState,
       String traceId,
       String name,
       SpanKind spanKind,
       Attributes attributes,
       List<LinkData> parentLinks) {
-    return Math.min(
-        sampler1.getSamplingRateExponent(
-            parentContext, traceId, name, spanKind, attributes, parentLinks),
-        sampler2.getSamplingRateExponent(
-            parentContext, traceId, name, spanKind, attributes, parentLinks));
+    boolean isOr = operation == Operation.OR;
+    // the combined exponent cannot change anymore once it has reached this value
+    int finalResult = isOr ? 0 : 63;
+    int result = isOr ? 63 : 0;
+    for (int i = 0; i < samplers.length; ++i) {
+      if (result == finalResult) {
+        if (i > lastIndexOfSamplerWithSideEffects) {
+          break;
+        }
+        if (!samplerHasSideEffects[i]) {
+          continue;
+        }
+      }
+      int samplingRateExponent =
+          samplers[i].getSamplingRateExponent(
+              parentContext, parentSamplingState, traceId, name, spanKind, attributes, parentLinks);
+      result =
+          isOr ? Math.min(result, samplingRateExponent) : Math.max(result, samplingRateExponent);
+    }
+    return result;
+  }
+
+  @Override
+  protected boolean hasSideEffects() {
+    return lastIndexOfSamplerWithSideEffects >= 0;
   }
 
   @Override
   public String getDescription() {
     return "ComposedSampler{"
-        + "sampler1="
-        + sampler1.getDescription()
-        + ", sampler2="
-        + sampler2.getDescription()
+        + "operation="
+        + operation
+        + ", samplers="
+        + Arrays.stream(samplers)
+            .map(AbstractConsistentSampler::getDescription)
+            .collect(Collectors.joining(", ", "[", "]"))
         + '}';
   }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.MergeInput;
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.Sample;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/*
+ * A thread-safe reservoir sampler. Items are added to one of several stripes depending on the
+ * adding thread, each stripe is a reservoir sampler with full capacity guarded by its own lock.
+ * Taking the samples merges the states of all stripes into a single reservoir, which respects the
+ * sample rate indices in the same way as if all items had been added to a single reservoir.
+ */
+public class ConcurrentReservoirSampler<T> {
+
+  private final int capacity;
+  private final ToIntFunction<? super T> greatestSampleRateIndexGreaterThanRandomValueOfData;
+  private final IntToDoubleFunction sampleRateIndexToSampleRate;
+  private final ReservoirSampler<T>[] stripes;
+  private final SplittableRandom mergeRandom;
+
+  public ConcurrentReservoirSampler(
+      int capacity,
+      int numberOfStripes,
+      ToIntFunction<? super T> greatestSampleRateIndexGreaterThanRandomValueOfData,
+      IntToDoubleFunction sampleRateIndexToSampleRate,
+      SplittableRandom random) {
+    checkArgument(numberOfStripes > 0);
+    requireNonNull(random);
+    this.capacity = capacity;
+    this.greatestSampleRateIndexGreaterThanRandomValueOfData =
+        requireNonNull(greatestSampleRateIndexGreaterThanRandomValueOfData);
+    this.sampleRateIndexToSampleRate = requireNonNull(sampleRateIndexToSampleRate);
+    @SuppressWarnings("unchecked")
+    ReservoirSampler<T>[] stripes = new ReservoirSampler[numberOfStripes];
+    for (int i = 0; i < numberOfStripes; ++i) {
+      stripes[i] =
+          new ReservoirSampler<>(
+              capacity,
+              greatestSampleRateIndexGreaterThanRandomValueOfData,
+              sampleRateIndexToSampleRate,
+              random.split());
+    }
+    this.stripes = stripes;
+    this.mergeRandom = random.split();
+  }
+
+  private ReservoirSampler<T> getStripe() {
+    // threads are assigned to stripes round-robin in the order of their IDs
+    return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+  }
+
+  public void add(T item) {
+    ReservoirSampler<T> stripe = getStripe();
+    synchronized (stripe) {
+      stripe.add(item);
+    }
+  }
+
+  public Collection<Sample<T>> getSamples() {
+    return merge(false).getSamples();
+  }
+
+  /**
+   * Returns the samples and resets the reservoir. The state of each stripe is taken and reset
+   * within a single critical section, hence every added item is either part of the returned
+   * samples or of the samples taken by the next call.
+   *
+   * @return the samples of all items added since the last reset
+   */
+  public Collection<Sample<T>> getSamplesAndReset() {
+    return merge(true).getSamples();
+  }
+
+  /**
+   * Returns a consistent snapshot of the samples of all stripes, which is equivalent to {@link
+   * #getSamples()} but does not allocate a wrapper per sample.
+   *
+   * @return a snapshot of the merged samples
+   */
+  public ReservoirSampler.Snapshot<T> getSnapshot() {
+    return merge(false).getSnapshot();
+  }
+
+  private ReservoirSampler<T> merge(boolean reset) {
+    List<MergeInput<T>> states = new ArrayList<>(stripes.length);
+    for (ReservoirSampler<T> stripe : stripes) {
+      synchronized (stripe) {
+        states.add(stripe.toMergeInput());
+        if (reset) {
+          stripe.reset();
+        }
+      }
+    }
+    // the random generator used for merging is not thread-safe
+    synchronized (mergeRandom) {
+      ReservoirSampler<T> merged =
+          new ReservoirSampler<>(
+              capacity,
+              greatestSampleRateIndexGreaterThanRandomValueOfData,
+              sampleRateIndexToSampleRate,
+              mergeRandom.split());
+      for (MergeInput<T> state : states) {
+        merged.merge(state);
+      }
+      return merged;
+    }
+  }
+}
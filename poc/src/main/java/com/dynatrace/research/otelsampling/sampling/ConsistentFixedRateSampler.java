@@ -37,6 +37,8 @@ public class ConsistentFixedRateSampler extends AbstractConsistentSampler {
   private final int lowerBoundExponent;
   private final int upperBoundExponent;
   private final double probabilityToUseLowerBoundExponent;
+  // floor(probabilityToUseLowerBoundExponent * 2^64) interpreted as unsigned long
+  private final long lowerBoundExponentThreshold;
   private final double samplingRate;
 
   public ConsistentFixedRateSampler(double samplingRate) {
@@ -77,16 +79,17 @@ public class ConsistentFixedRateSampler extends AbstractConsistentSampler {
       probabilityToUseLowerBoundExponent =
           (samplingRate - lowerSamplingRate) / (upperSamplingRate - lowerSamplingRate);
     }
+    lowerBoundExponentThreshold = toUnsignedThreshold(probabilityToUseLowerBoundExponent);
   }
 
-  private boolean doBernoulliTrial(double successProbability) {
-    while (true) {
-      if (successProbability == 0) return false;
-      if (successProbability == 1) return true;
-      boolean b = successProbability > 0.5;
-      if (generateRandomBit()) return b;
-      successProbability += successProbability;
-      if (b) successProbability -= 1;
+  // returns floor(probability * 2^64) as unsigned long for a probability in the range [0, 1),
+  // multiplying by a power of two and subtracting 2^63 are both exact
+  static long toUnsignedThreshold(double probability) {
+    double scaled = probability * 0x1p64;
+    if (scaled < 0x1p63) {
+      return (long) scaled;
+    } else {
+      return Long.MIN_VALUE | (long) (scaled - 0x1p63);
     }
   }
 
@@ -98,7 +101,11 @@ public class ConsistentFixedRateSampler extends AbstractConsistentSampler {
       SpanKind spanKind,
       Attributes attributes,
       List<LinkData> parentLinks) {
-    if (doBernoulliTrial(probabilityToUseLowerBoundExponent)) {
+    if (lowerBoundExponent == upperBoundExponent) {
+      return lowerBoundExponent;
+    }
+    // success with probability floor(p * 2^64) / 2^64, which differs from p by less than 2^-64
+    if (Long.compareUnsigned(generateRandomLong(), lowerBoundExponentThreshold) < 0) {
       return lowerBoundExponent;
     } else {
       return upperBoundExponent;
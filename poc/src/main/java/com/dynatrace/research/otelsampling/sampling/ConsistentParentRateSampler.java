@@ -42,7 +42,26 @@ public class ConsistentParentRateSampler extends AbstractConsistentSampler {
       SpanKind spanKind,
       Attributes attributes,
       List<LinkData> parentLinks) {
-    int parentSamplingRateExponent = getParentSamplingRateExponentFromParentContext(parentContext);
+    return getSamplingRateExponent(
+        parentContext,
+        SamplingState.fromContext(parentContext),
+        traceId,
+        name,
+        spanKind,
+        attributes,
+        parentLinks);
+  }
+
+  @Override
+  protected int getSamplingRateExponent(
+      Context parentContext,
+      SamplingState parentSamplingState,
+      String traceId,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes,
+      List<LinkData> parentLinks) {
+    int parentSamplingRateExponent = parentSamplingState.getSamplingRateExponent();
     if (parentSamplingRateExponent == SAMPLING_UNKNOWN_RATE_EXPONENT) {
       return 0;
     } else {
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * This sampler limits the number of sampled spans per second. The arrival rate is estimated from
+ * the number of spans counted in fixed time buckets. Whenever a bucket is rolled over, the
+ * sampling rate is adjusted to min(1, target rate / estimated arrival rate) and realized as a mix
+ * of two neighboring power-of-two sampling rates exactly like ConsistentFixedRateSampler does.
+ * Hence, the sampling decisions remain consistent.
+ */
+public class ConsistentRateLimitingSampler extends AbstractConsistentSampler {
+
+  private static final long DEFAULT_BUCKET_DURATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // weight of the most recent bucket in the exponential moving average of the arrival rate
+  private static final double SMOOTHING_FACTOR = 0.5;
+
+  private final double targetSpansPerSecond;
+  private final long bucketDurationNanos;
+  private final LongSupplier nanoTimeSupplier;
+
+  private final LongAdder arrivalCounter = new LongAdder();
+  private final AtomicLong bucketStartNanos;
+
+  // only written by the thread that won the roll-over of the current bucket
+  private volatile double arrivalRatePerSecond = Double.NaN;
+  private volatile double samplingRate = 1.;
+  private volatile ConsistentFixedRateSampler delegate;
+
+  public ConsistentRateLimitingSampler(double targetSpansPerSecond) {
+    this(targetSpansPerSecond, DEFAULT_BUCKET_DURATION_NANOS, System::nanoTime);
+  }
+
+  ConsistentRateLimitingSampler(
+      double targetSpansPerSecond, long bucketDurationNanos, LongSupplier nanoTimeSupplier) {
+    checkArgument(targetSpansPerSecond >= 0., "Target spans per second must be non-negative!");
+    checkArgument(bucketDurationNanos > 0, "Bucket duration must be positive!");
+    this.targetSpansPerSecond = targetSpansPerSecond;
+    this.bucketDurationNanos = bucketDurationNanos;
+    this.nanoTimeSupplier = requireNonNull(nanoTimeSupplier);
+    this.bucketStartNanos = new AtomicLong(nanoTimeSupplier.getAsLong());
+    this.delegate = createDelegate(samplingRate);
+  }
+
+  private ConsistentFixedRateSampler createDelegate(double samplingRate) {
+    return new ConsistentFixedRateSampler(samplingRate) {
+      @Override
+      protected long generateRandomLong() {
+        return ConsistentRateLimitingSampler.this.generateRandomLong();
+      }
+    };
+  }
+
+  private void rollOverIfNecessary() {
+    long currentBucketStartNanos = bucketStartNanos.get();
+    long nowNanos = nanoTimeSupplier.getAsLong();
+    long elapsedNanos = nowNanos - currentBucketStartNanos;
+    if (elapsedNanos < bucketDurationNanos
+        || !bucketStartNanos.compareAndSet(currentBucketStartNanos, nowNanos)) {
+      return;
+    }
+    // spans counted concurrently with the reset may be attributed to the next bucket
+    long count = arrivalCounter.sumThenReset();
+    double bucketArrivalRatePerSecond = count * 1e9 / elapsedNanos;
+    if (Double.isNaN(arrivalRatePerSecond)) {
+      arrivalRatePerSecond = bucketArrivalRatePerSecond;
+    } else {
+      arrivalRatePerSecond =
+          SMOOTHING_FACTOR * bucketArrivalRatePerSecond
+              + (1. - SMOOTHING_FACTOR) * arrivalRatePerSecond;
+    }
+    samplingRate =
+        (arrivalRatePerSecond > targetSpansPerSecond)
+            ? targetSpansPerSecond / arrivalRatePerSecond
+            : 1.;
+    delegate = createDelegate(samplingRate);
+  }
+
+  @Override
+  protected int getSamplingRateExponent(
+      Context parentContext,
+      String traceId,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes,
+      List<LinkData> parentLinks) {
+    rollOverIfNecessary();
+    arrivalCounter.increment();
+    return delegate.getSamplingRateExponent(
+        parentContext, traceId, name, spanKind, attributes, parentLinks);
+  }
+
+  // the arrivals are counted when the sampling rate exponent is determined
+  @Override
+  protected boolean hasSideEffects() {
+    return true;
+  }
+
+  // the sampling rate currently used for new spans
+  double getCurrentSamplingRate() {
+    return samplingRate;
+  }
+
+  @Override
+  public final String getDescription() {
+    return "ConsistentRateLimitingSampler{"
+        + "targetSpansPerSecond="
+        + targetSpansPerSecond
+        + ", bucketDurationNanos="
+        + bucketDurationNanos
+        + '}';
+  }
+}
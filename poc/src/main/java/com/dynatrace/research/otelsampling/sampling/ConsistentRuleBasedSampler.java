@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.CheckForNull;
+
+/*
+ * This sampler determines the sampling rate from the first rule of an ordered rule list that
+ * matches the span. Rules may constrain the span name (exact or prefix), the span kind, and
+ * attribute values. If no rule matches, the default sampling rate is used.
+ *
+ * The rules are compiled at construction into a lookup table per span kind, consisting of a hash
+ * map for exact span names, a trie for span name prefixes, and a list of rules without a span name
+ * constraint. Each of them yields rule indices in ascending order, which allows stopping the search
+ * as soon as the remaining candidates cannot improve on the best match found so far.
+ */
+public class ConsistentRuleBasedSampler extends AbstractConsistentSampler {
+
+  private static final int[] NO_RULES = {};
+
+  public static final class Rule {
+
+    @CheckForNull private final String spanNameExact;
+    @CheckForNull private final String spanNamePrefix;
+    @CheckForNull private final SpanKind spanKind;
+    private final AttributeKey<?>[] attributeKeys;
+    private final Object[] attributeValues;
+    private final double samplingRate;
+
+    private Rule(Builder builder) {
+      this.spanNameExact = builder.spanNameExact;
+      this.spanNamePrefix = builder.spanNamePrefix;
+      this.spanKind = builder.spanKind;
+      this.attributeKeys = builder.attributeKeys.toArray(new AttributeKey<?>[0]);
+      this.attributeValues = builder.attributeValues.toArray();
+      this.samplingRate = builder.samplingRate;
+    }
+
+    public static Builder builder(double samplingRate) {
+      return new Builder(samplingRate);
+    }
+
+    private boolean matchesAttributes(Attributes attributes) {
+      for (int i = 0; i < attributeKeys.length; ++i) {
+        if (!attributeValues[i].equals(attributes.get(attributeKeys[i]))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("Rule{");
+      if (spanNameExact != null) {
+        sb.append("spanNameExact=").append(spanNameExact).append(", ");
+      }
+      if (spanNamePrefix != null) {
+        sb.append("spanNamePrefix=").append(spanNamePrefix).append(", ");
+      }
+      if (spanKind != null) {
+        sb.append("spanKind=").append(spanKind).append(", ");
+      }
+      for (int i = 0; i < attributeKeys.length; ++i) {
+        sb.append(attributeKeys[i].getKey()).append('=').append(attributeValues[i]).append(", ");
+      }
+      return sb.append("samplingRate=").append(samplingRate).append('}').toString();
+    }
+
+    public static final class Builder {
+
+      @CheckForNull private String spanNameExact;
+      @CheckForNull private String spanNamePrefix;
+      @CheckForNull private SpanKind spanKind;
+      private final List<AttributeKey<?>> attributeKeys = new ArrayList<>();
+      private final List<Object> attributeValues = new ArrayList<>();
+      private final double samplingRate;
+
+      private Builder(double samplingRate) {
+        checkArgument(
+            samplingRate >= 0. && samplingRate <= 1., "Sampling rate must be in the range [0,1]!");
+        this.samplingRate = samplingRate;
+      }
+
+      public Builder spanNameEquals(String spanName) {
+        checkState(
+            spanNameExact == null && spanNamePrefix == null, "Span name constraint already set!");
+        this.spanNameExact = requireNonNull(spanName);
+        return this;
+      }
+
+      public Builder spanNameStartsWith(String prefix) {
+        checkState(
+            spanNameExact == null && spanNamePrefix == null, "Span name constraint already set!");
+        this.spanNamePrefix = requireNonNull(prefix);
+        return this;
+      }
+
+      public Builder spanKind(SpanKind spanKind) {
+        this.spanKind = requireNonNull(spanKind);
+        return this;
+      }
+
+      public <T> Builder attributeEquals(AttributeKey<T> key, T value) {
+        attributeKeys.add(requireNonNull(key));
+        attributeValues.add(requireNonNull(value));
+        return this;
+      }
+
+      public Rule build() {
+        return new Rule(this);
+      }
+    }
+  }
+
+  // trie node for span name prefixes, children are sorted by character for binary search
+  private static final class PrefixTrieNode {
+    private final char[] childCharacters;
+    private final PrefixTrieNode[] children;
+    // indices of rules whose prefix ends at this node
+    private final int[] ruleIndices;
+
+    private PrefixTrieNode(char[] childCharacters, PrefixTrieNode[] children, int[] ruleIndices) {
+      this.childCharacters = childCharacters;
+      this.children = children;
+      this.ruleIndices = ruleIndices;
+    }
+
+    @CheckForNull
+    private PrefixTrieNode getChild(char c) {
+      int idx = Arrays.binarySearch(childCharacters, c);
+      return (idx >= 0) ? children[idx] : null;
+    }
+  }
+
+  private static final class PrefixTrieNodeBuilder {
+    private final TreeMap<Character, PrefixTrieNodeBuilder> children = new TreeMap<>();
+    private final List<Integer> ruleIndices = new ArrayList<>();
+
+    private void add(String prefix, int ruleIndex) {
+      PrefixTrieNodeBuilder node = this;
+      for (int i = 0; i < prefix.length(); ++i) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), c -> new PrefixTrieNodeBuilder());
+      }
+      node.ruleIndices.add(ruleIndex);
+    }
+
+    private PrefixTrieNode build() {
+      char[] childCharacters = new char[children.size()];
+      PrefixTrieNode[] childNodes = new PrefixTrieNode[children.size()];
+      int i = 0;
+      for (Map.Entry<Character, PrefixTrieNodeBuilder> entry : children.entrySet()) {
+        childCharacters[i] = entry.getKey();
+        childNodes[i] = entry.getValue().build();
+        i += 1;
+      }
+      return new PrefixTrieNode(childCharacters, childNodes, toIntArray(ruleIndices));
+    }
+  }
+
+  // lookup structures for the rules applicable to a single span kind
+  private static final class RuleTable {
+    private final Map<String, int[]> exactSpanNameRuleIndices;
+    private final PrefixTrieNode prefixTrieRoot;
+    private final int[] anySpanNameRuleIndices;
+
+    private RuleTable(List<Rule> rules, SpanKind spanKind) {
+      Map<String, List<Integer>> exact = new HashMap<>();
+      PrefixTrieNodeBuilder prefixTrieRootBuilder = new PrefixTrieNodeBuilder();
+      List<Integer> any = new ArrayList<>();
+      for (int ruleIndex = 0; ruleIndex < rules.size(); ++ruleIndex) {
+        Rule rule = rules.get(ruleIndex);
+        if (rule.spanKind != null && rule.spanKind != spanKind) {
+          continue;
+        }
+        if (rule.spanNameExact != null) {
+          exact.computeIfAbsent(rule.spanNameExact, k -> new ArrayList<>()).add(ruleIndex);
+        } else if (rule.spanNamePrefix != null) {
+          prefixTrieRootBuilder.add(rule.spanNamePrefix, ruleIndex);
+        } else {
+          any.add(ruleIndex);
+        }
+      }
+      this.exactSpanNameRuleIndices = new HashMap<>();
+      exact.forEach((name, indices) -> exactSpanNameRuleIndices.put(name, toIntArray(indices)));
+      this.prefixTrieRoot = prefixTrieRootBuilder.build();
+      this.anySpanNameRuleIndices = toIntArray(any);
+    }
+  }
+
+  private final Rule[] rules;
+  private final AbstractConsistentSampler[] ruleSamplers;
+  private final AbstractConsistentSampler defaultSampler;
+  private final RuleTable[] ruleTables; // indexed by span kind ordinal
+  private final double defaultSamplingRate;
+
+  public ConsistentRuleBasedSampler(List<Rule> rules, double defaultSamplingRate) {
+    this.rules = rules.toArray(new Rule[0]);
+    this.defaultSamplingRate = defaultSamplingRate;
+    this.defaultSampler = createSampler(defaultSamplingRate);
+    this.ruleSamplers = new AbstractConsistentSampler[this.rules.length];
+    for (int i = 0; i < this.rules.length; ++i) {
+      ruleSamplers[i] = createSampler(requireNonNull(this.rules[i]).samplingRate);
+    }
+    this.ruleTables = new RuleTable[SpanKind.values().length];
+    for (SpanKind spanKind : SpanKind.values()) {
+      ruleTables[spanKind.ordinal()] = new RuleTable(rules, spanKind);
+    }
+  }
+
+  private AbstractConsistentSampler createSampler(double samplingRate) {
+    return new ConsistentFixedRateSampler(samplingRate) {
+      @Override
+      protected long generateRandomLong() {
+        return ConsistentRuleBasedSampler.this.generateRandomLong();
+      }
+    };
+  }
+
+  private static int[] toIntArray(List<Integer> list) {
+    if (list.isEmpty()) {
+      return NO_RULES;
+    }
+    return list.stream().mapToInt(i -> i).toArray();
+  }
+
+  // returns the smallest index of a matching rule in the given sorted candidates if smaller than
+  // the given best rule index, otherwise the best rule index
+  private int findFirstMatchingRule(int[] ruleIndices, Attributes attributes, int bestRuleIndex) {
+    for (int ruleIndex : ruleIndices) {
+      if (ruleIndex >= bestRuleIndex) {
+        break;
+      }
+      if (rules[ruleIndex].matchesAttributes(attributes)) {
+        return ruleIndex;
+      }
+    }
+    return bestRuleIndex;
+  }
+
+  // returns the index of the first matching rule or the number of rules if no rule matches
+  int findRuleIndex(String name, SpanKind spanKind, Attributes attributes) {
+    RuleTable ruleTable = ruleTables[spanKind.ordinal()];
+    int bestRuleIndex = rules.length;
+
+    int[] exactRuleIndices = ruleTable.exactSpanNameRuleIndices.get(name);
+    if (exactRuleIndices != null) {
+      bestRuleIndex = findFirstMatchingRule(exactRuleIndices, attributes, bestRuleIndex);
+    }
+
+    PrefixTrieNode node = ruleTable.prefixTrieRoot;
+    int i = 0;
+    while (true) {
+      bestRuleIndex = findFirstMatchingRule(node.ruleIndices, attributes, bestRuleIndex);
+      if (i == name.length()) {
+        break;
+      }
+      node = node.getChild(name.charAt(i++));
+      if (node == null) {
+        break;
+      }
+    }
+
+    return findFirstMatchingRule(ruleTable.anySpanNameRuleIndices, attributes, bestRuleIndex);
+  }
+
+  @Override
+  protected int getSamplingRateExponent(
+      Context parentContext,
+      String traceId,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes,
+      List<LinkData> parentLinks) {
+    return getSamplingRateExponent(
+        parentContext,
+        SamplingState.fromContext(parentContext),
+        traceId,
+        name,
+        spanKind,
+        attributes,
+        parentLinks);
+  }
+
+  @Override
+  protected int getSamplingRateExponent(
+      Context parentContext,
+      SamplingState parentSamplingState,
+      String traceId,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes,
+      List<LinkData> parentLinks) {
+    int ruleIndex = findRuleIndex(name, spanKind, attributes);
+    AbstractConsistentSampler sampler =
+        (ruleIndex < ruleSamplers.length) ? ruleSamplers[ruleIndex] : defaultSampler;
+    return sampler.getSamplingRateExponent(
+        parentContext, parentSamplingState, traceId, name, spanKind, attributes, parentLinks);
+  }
+
+  @Override
+  public final String getDescription() {
+    return "ConsistentRuleBasedSampler{"
+        + "rules="
+        + Arrays.toString(rules)
+        + ", defaultSamplingRate="
+        + defaultSamplingRate
+        + '}';
+  }
+}
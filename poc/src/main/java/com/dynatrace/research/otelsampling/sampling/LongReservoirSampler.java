@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.util.Objects.requireNonNull;
+
+import java.util.SplittableRandom;
+
+/**
+ * A reservoir sampler for 64-bit identifiers like span IDs that works like {@link ReservoirSampler}
+ * but stores identifiers and greatest sample rate indices in primitive arrays. Samples are accessed
+ * through a {@link Cursor} without allocating any objects.
+ */
+public final class LongReservoirSampler {
+
+  private final long[] ids;
+  private final byte[] indices;
+  private int counter = 0;
+  private int bufferSeparatorIndex = 0;
+  private int bufferSampleRateIndex = 0;
+  private final SplittableRandom random;
+
+  // same layout as in ReservoirSampler
+  void checkConsistency() {
+    checkState(bufferSeparatorIndex < ids.length);
+    for (int i = 0; i < bufferSeparatorIndex; ++i) {
+      checkState(indices[i] >= bufferSampleRateIndex);
+    }
+    if (bufferSampleRateIndex > 0) {
+      for (int i = bufferSeparatorIndex; i < ids.length; ++i) {
+        checkState(indices[i] >= bufferSampleRateIndex - 1);
+      }
+    }
+  }
+
+  public LongReservoirSampler(int capacity, SplittableRandom random) {
+    checkArgument(capacity > 0);
+    ids = new long[capacity];
+    indices = new byte[capacity];
+    this.random = requireNonNull(random);
+    checkConsistency();
+  }
+
+  /**
+   * Adds an identifier.
+   *
+   * @param id the identifier
+   * @param greatestSampleRateIndex the greatest sample rate index whose sample rate is greater than
+   *     the random value of the data, must be in the range [0, 127]
+   */
+  public void add(long id, int greatestSampleRateIndex) {
+    checkArgument(greatestSampleRateIndex >= 0 && greatestSampleRateIndex <= Byte.MAX_VALUE);
+    byte index = (byte) greatestSampleRateIndex;
+    if (bufferSampleRateIndex == 0) {
+      // buffer is not yet full
+      ids[bufferSeparatorIndex] = id;
+      indices[bufferSeparatorIndex] = index;
+      bufferSeparatorIndex += 1;
+      if (bufferSeparatorIndex == ids.length) {
+        bufferSeparatorIndex = 0;
+        bufferSampleRateIndex += 1;
+        counter = ids.length;
+      }
+    } else {
+      // buffer is full
+      while (index >= bufferSampleRateIndex - 1) {
+        counter += 1;
+        int idxToDrop = random.nextInt(bufferSeparatorIndex, bufferSeparatorIndex + counter);
+        if (idxToDrop < ids.length) {
+          long tmpId = ids[idxToDrop];
+          byte tmpIndex = indices[idxToDrop];
+          ids[idxToDrop] = id;
+          indices[idxToDrop] = index;
+          id = tmpId;
+          index = tmpIndex;
+        }
+        while (bufferSeparatorIndex < ids.length && index >= bufferSampleRateIndex) {
+          int idx = random.nextInt(bufferSeparatorIndex, ids.length);
+          final long tmpId = ids[idx];
+          final byte tmpIndex = indices[idx];
+          ids[idx] = ids[bufferSeparatorIndex];
+          indices[idx] = indices[bufferSeparatorIndex];
+          ids[bufferSeparatorIndex] = id;
+          indices[bufferSeparatorIndex] = index;
+          id = tmpId;
+          index = tmpIndex;
+          bufferSeparatorIndex += 1;
+        }
+        if (bufferSeparatorIndex == ids.length) {
+          bufferSeparatorIndex = 0;
+          bufferSampleRateIndex += 1;
+          counter = ids.length;
+        } else {
+          break;
+        }
+      }
+    }
+  }
+
+  public int getNumberOfSamples() {
+    return (bufferSampleRateIndex > 0) ? ids.length : bufferSeparatorIndex;
+  }
+
+  /**
+   * Returns a cursor over the current samples in the same order as {@link
+   * ReservoirSampler#getSamples()}. The cursor reads the internal arrays directly and must not be
+   * used after further items have been added.
+   *
+   * @return a cursor positioned before the first sample
+   */
+  public Cursor getSamples() {
+    return new Cursor();
+  }
+
+  public final class Cursor {
+    private int pos = -1;
+
+    private Cursor() {}
+
+    public boolean next() {
+      if (pos + 1 < getNumberOfSamples()) {
+        pos += 1;
+        return true;
+      }
+      return false;
+    }
+
+    public long getId() {
+      checkState(pos >= 0);
+      return ids[pos];
+    }
+
+    public int getSampleRateIndex() {
+      checkState(pos >= 0);
+      return (pos < bufferSeparatorIndex) ? bufferSampleRateIndex : bufferSampleRateIndex - 1;
+    }
+  }
+}
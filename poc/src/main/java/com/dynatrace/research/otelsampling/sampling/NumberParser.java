@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+// parses non-negative decimal and lower-case hexadecimal numbers from trace state values without
+// throwing or allocating, invalid input including signs, empty ranges and values exceeding the
+// given maximum results in INVALID
+final class NumberParser {
+
+  static final long INVALID = -1;
+
+  private NumberParser() {}
+
+  static long parseDecimal(CharSequence s, long max) {
+    return parseDecimal(s, 0, s.length(), max);
+  }
+
+  // max must be non-negative
+  static long parseDecimal(CharSequence s, int beginIndex, int endIndex, long max) {
+    if (beginIndex >= endIndex || endIndex > s.length()) {
+      return INVALID;
+    }
+    long value = 0;
+    for (int i = beginIndex; i < endIndex; ++i) {
+      int digit = s.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return INVALID;
+      }
+      // value * 10 + digit > max
+      if (digit > max || value > (max - digit) / 10) {
+        return INVALID;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  static long parseHex(CharSequence s, int beginIndex, int endIndex, long max) {
+    if (beginIndex >= endIndex || endIndex > s.length()) {
+      return INVALID;
+    }
+    long value = 0;
+    for (int i = beginIndex; i < endIndex; ++i) {
+      int digit = hexDigitToInt(s.charAt(i));
+      if (digit < 0) {
+        return INVALID;
+      }
+      // value * 16 + digit > max
+      if (digit > max || value > (max - digit) >>> 4) {
+        return INVALID;
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  // parses a span ID of 16 lower-case hexadecimal digits, any other input results in 0, which is
+  // the value of the invalid span ID, because INVALID is a valid span ID value
+  static long parseSpanId(CharSequence s) {
+    if (s.length() != 16) {
+      return 0;
+    }
+    long value = 0;
+    for (int i = 0; i < 16; ++i) {
+      int digit = hexDigitToInt(s.charAt(i));
+      if (digit < 0) {
+        return 0;
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  // returns true if the given range consists of exactly 16 lower-case hexadecimal digits, which is
+  // the format of a span ID
+  static boolean isSpanId(CharSequence s, int beginIndex, int endIndex) {
+    if (beginIndex < 0 || endIndex - beginIndex != 16 || endIndex > s.length()) {
+      return false;
+    }
+    for (int i = beginIndex; i < endIndex; ++i) {
+      if (hexDigitToInt(s.charAt(i)) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // returns the value of a lower-case hexadecimal digit or -1
+  static int hexDigitToInt(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    } else {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+/** Defines how the geometric random value of a new trace is generated. */
+public enum RandomGenerationMode {
+  /**
+   * The geometric random value is generated by counting consecutive random bits, which requires on
+   * average 2 and at most 62 calls of {@link AbstractConsistentSampler#generateRandomBit()}.
+   */
+  RANDOM_BITS,
+  /**
+   * The geometric random value is derived from the number of leading zeros of a single random long
+   * value obtained by {@link AbstractConsistentSampler#generateRandomLong()}.
+   */
+  RANDOM_LONG,
+  /**
+   * The geometric random value is derived from the number of trailing zeros of the least
+   * significant 64 bits of the trace ID, which therefore must be random. As it can be recomputed by
+   * any service, it is neither read from nor written to the trace state. All samplers participating
+   * in a trace must use this mode to ensure consistent sampling.
+   */
+  TRACE_ID
+}
@@ -27,6 +27,7 @@
 package com.dynatrace.research.otelsampling.sampling;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.Objects.requireNonNull;
 
@@ -68,6 +69,15 @@ public class ReservoirSampler<T> {
   private int bufferSampleRateIndex = 0;
   private final SplittableRandom random;
 
+  // stands for an unknown item during merging
+  private static final Object PLACEHOLDER = new Object();
+  private int placeholderSampleRateIndex = 0;
+
+  // state of the skipping in addAll, only valid if proposalSampleRateIndex == bufferSampleRateIndex
+  private int proposalSampleRateIndex = 0;
+  private double proposalProbability = 0;
+  private long numItemsBeforeCandidate = 0;
+
   // elements with indices < bufferSeparatorIndex are sampled with a rate defined by
   // bufferSampleRateIndex
   // elements with indices >= bufferSeparatorIndex are sampled with a rate defined by
@@ -114,6 +124,28 @@ public class ReservoirSampler<T> {
 
   public void add(T item) {
     requireNonNull(item);
+    addInternal(item);
+    // checkConsistency();
+  }
+
+  // returns false if an item with the given greatest sample rate index would be dropped
+  // immediately, the sample rate index of the buffer never decreases until the next reset
+  // like all other methods, this one must not be called concurrently with modifications
+  boolean mayAccept(int greatestSampleRateIndex) {
+    return greatestSampleRateIndex >= bufferSampleRateIndex - 1;
+  }
+
+  // removes all items and restores the initial state
+  void reset() {
+    Arrays.fill(buffer, null);
+    counter = 0;
+    bufferSeparatorIndex = 0;
+    bufferSampleRateIndex = 0;
+    proposalSampleRateIndex = 0;
+  }
+
+  // returns the item that has been dropped, or null if no item has been dropped
+  private Object addInternal(Object item) {
     if (bufferSampleRateIndex == 0) {
       // buffer is not yet full
       buffer[bufferSeparatorIndex] = item;
@@ -123,42 +155,403 @@ public class ReservoirSampler<T> {
         bufferSampleRateIndex += 1;
         counter = buffer.length;
       }
+      return null;
     } else {
       // buffer is full
-      while (greatestSampleRateIndexGreaterThanRandomValueOfData.applyAsInt(item)
-          >= bufferSampleRateIndex - 1) {
+      return addToFullBuffer(item, false);
+    }
+  }
+
+  // if isInserted is true, the counter has already been incremented for the given item and it is
+  // known to replace an item of the lower part
+  private Object addToFullBuffer(Object item, boolean isInserted) {
+    while (isInserted || getGreatestSampleRateIndex(item) >= bufferSampleRateIndex - 1) {
+      int idxToDrop;
+      if (isInserted) {
+        idxToDrop = random.nextInt(bufferSeparatorIndex, buffer.length);
+        isInserted = false;
+      } else {
         counter += 1;
-        int idxToDrop = random.nextInt(bufferSeparatorIndex, bufferSeparatorIndex + counter);
-        if (idxToDrop < buffer.length) {
-          T tmp = (T) buffer[idxToDrop];
-          buffer[idxToDrop] = item;
-          item = tmp;
-        }
-        while (bufferSeparatorIndex < buffer.length
-            && greatestSampleRateIndexGreaterThanRandomValueOfData.applyAsInt(item)
-                >= bufferSampleRateIndex) {
-          int idx = random.nextInt(bufferSeparatorIndex, buffer.length);
-          final T tmp = (T) buffer[idx];
-          buffer[idx] = buffer[bufferSeparatorIndex];
-          buffer[bufferSeparatorIndex] = item;
-          item = tmp;
-          bufferSeparatorIndex += 1;
-        }
-        if (bufferSeparatorIndex == buffer.length) {
-          bufferSeparatorIndex = 0;
-          bufferSampleRateIndex += 1;
-          counter = buffer.length;
-        } else {
-          break;
-        }
+        idxToDrop = random.nextInt(bufferSeparatorIndex, bufferSeparatorIndex + counter);
+      }
+      if (idxToDrop < buffer.length) {
+        Object tmp = buffer[idxToDrop];
+        buffer[idxToDrop] = item;
+        item = tmp;
+      }
+      while (bufferSeparatorIndex < buffer.length
+          && getGreatestSampleRateIndex(item) >= bufferSampleRateIndex) {
+        int idx = random.nextInt(bufferSeparatorIndex, buffer.length);
+        final Object tmp = buffer[idx];
+        buffer[idx] = buffer[bufferSeparatorIndex];
+        buffer[bufferSeparatorIndex] = item;
+        item = tmp;
+        bufferSeparatorIndex += 1;
+      }
+      if (bufferSeparatorIndex == buffer.length) {
+        bufferSeparatorIndex = 0;
+        bufferSampleRateIndex += 1;
+        counter = buffer.length;
+      } else {
+        break;
+      }
+    }
+    return item;
+  }
+
+  /**
+   * Adds multiple items. The result has the same distribution as adding them one by one. Once the
+   * buffer is full, items with a greatest sample rate index equal to the sample rate index of the
+   * buffer minus one are skipped in runs whose lengths are drawn at once, which saves random number
+   * generation for most of them.
+   *
+   * @param items the items to add
+   */
+  public void addAll(Iterable<? extends T> items) {
+    for (T item : items) {
+      requireNonNull(item);
+      if (bufferSampleRateIndex == 0) {
+        addInternal(item);
+        continue;
+      }
+      int index = greatestSampleRateIndexGreaterThanRandomValueOfData.applyAsInt(item);
+      if (index >= bufferSampleRateIndex) {
+        addToFullBuffer(item, false);
+      } else if (index == bufferSampleRateIndex - 1) {
+        addWithSkipping(item);
       }
     }
     // checkConsistency();
   }
 
+  /**
+   * Adds multiple items. Equivalent to {@link #addAll(Iterable)}.
+   *
+   * @param items the items to add
+   */
+  public void addAll(T[] items) {
+    addAll(Arrays.asList(items));
+  }
+
+  // the insertion probability of an item with index bufferSampleRateIndex - 1 is (buffer.length -
+  // bufferSeparatorIndex) / counter, which does not increase while the level does not change.
+  // therefore, candidates are drawn with the probability at the time of the last draw and accepted
+  // with the ratio of the current and that probability
+  private void addWithSkipping(T item) {
+    if (proposalSampleRateIndex != bufferSampleRateIndex) {
+      drawCandidate();
+    }
+    counter += 1;
+    if (numItemsBeforeCandidate > 0) {
+      numItemsBeforeCandidate -= 1;
+    } else if (random.nextDouble() * proposalProbability < getInsertionProbability(counter)) {
+      addToFullBuffer(item, true);
+      drawCandidate();
+    } else {
+      drawCandidate();
+    }
+  }
+
+  private void drawCandidate() {
+    proposalSampleRateIndex = bufferSampleRateIndex;
+    proposalProbability = getInsertionProbability(counter + 1L);
+    numItemsBeforeCandidate = drawNumberOfFailures(proposalProbability);
+  }
+
+  private double getInsertionProbability(long c) {
+    return (buffer.length - bufferSeparatorIndex) / (double) c;
+  }
+
+  // draws the number of failures before the first success of Bernoulli trials with the given
+  // success probability
+  private long drawNumberOfFailures(double probability) {
+    return (long) (Math.log(1. - random.nextDouble()) / Math.log1p(-probability));
+  }
+
+  private int getGreatestSampleRateIndex(Object item) {
+    if (item == PLACEHOLDER) {
+      return placeholderSampleRateIndex;
+    }
+    return greatestSampleRateIndexGreaterThanRandomValueOfData.applyAsInt((T) item);
+  }
+
+  // the state of a reservoir
+  // items: all items of the buffer, the first separatorIndex of them belong to the upper part
+  // level: the sample rate index of the buffer, 0 if the buffer is not yet full
+  // counter: the number of items in the stream with a greatest sample rate index greater than or
+  // equal to level - 1, 0 if level == 0
+  static final class MergeInput<T> {
+    private final List<T> items;
+    private final int separatorIndex;
+    private final int level;
+    private final int counter;
+
+    MergeInput(List<T> items, int separatorIndex, int level, int counter) {
+      this.items = requireNonNull(items);
+      this.separatorIndex = separatorIndex;
+      this.level = level;
+      this.counter = counter;
+    }
+  }
+
+  MergeInput<T> toMergeInput() {
+    int size = getNumberOfSamples();
+    List<T> items = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      items.add((T) buffer[i]);
+    }
+    return new MergeInput<>(
+        items,
+        bufferSeparatorIndex,
+        bufferSampleRateIndex,
+        (bufferSampleRateIndex > 0) ? counter : 0);
+  }
+
+  private void setState(MergeInput<T> state) {
+    checkArgument(
+        (state.level > 0)
+            ? state.items.size() == buffer.length
+            : state.items.size() < buffer.length);
+    Arrays.fill(buffer, null);
+    for (int i = 0; i < state.items.size(); ++i) {
+      buffer[i] = state.items.get(i);
+    }
+    bufferSeparatorIndex = state.separatorIndex;
+    bufferSampleRateIndex = state.level;
+    counter = state.counter;
+    proposalSampleRateIndex = 0;
+  }
+
+  // merges the state of another reservoir into this one
+  //
+  // the result is distributed as if the stream of the other reservoir had been added to this
+  // reservoir in random order. the reservoir with the greater level is taken as base. items of the
+  // other stream with a greatest sample rate index less than level - 1 would be ignored anyway,
+  // and if the other level is smaller, all remaining ones are known and can be replayed. if both
+  // levels are equal, the other reservoir only holds a random subset of its items with index
+  // level - 1. all of them are replayed as placeholders, and those placeholders that are finally
+  // kept are replaced by randomly chosen real items.
+  void merge(MergeInput<T> other) {
+    if (other.level > bufferSampleRateIndex) {
+      MergeInput<T> self = toMergeInput();
+      setState(other);
+      other = self;
+    }
+    final int level = bufferSampleRateIndex;
+    final boolean usePlaceholders = level > 0 && other.level == level;
+
+    List<T> replayedItems = new ArrayList<>();
+    List<T> lightItems = new ArrayList<>();
+    for (T item : other.items) {
+      int index = greatestSampleRateIndexGreaterThanRandomValueOfData.applyAsInt(item);
+      if (usePlaceholders && index == level - 1) {
+        lightItems.add(item);
+      } else if (index >= level - 1) {
+        replayedItems.add(item);
+      }
+    }
+    int numPlaceholders =
+        usePlaceholders ? other.counter - (other.items.size() - lightItems.size()) : 0;
+    checkArgument(numPlaceholders >= lightItems.size());
+
+    placeholderSampleRateIndex = level - 1;
+    List<T> droppedLightItems = new ArrayList<>();
+    int numRemaining = replayedItems.size() + numPlaceholders;
+    while (numRemaining > 0) {
+      Object item;
+      if (random.nextInt(numRemaining) < numPlaceholders) {
+        item = PLACEHOLDER;
+        numPlaceholders -= 1;
+      } else {
+        item = removeRandom(replayedItems);
+      }
+      numRemaining -= 1;
+      Object dropped = addInternal(item);
+      if (dropped != null
+          && dropped != PLACEHOLDER
+          && getGreatestSampleRateIndex(dropped) == level - 1) {
+        droppedLightItems.add((T) dropped);
+      }
+    }
+
+    // placeholders can only be left if the level has not changed
+    for (int i = bufferSeparatorIndex; i < buffer.length; ++i) {
+      if (buffer[i] == PLACEHOLDER) {
+        // the union of both reservoirs always holds enough items with index level - 1
+        buffer[i] = removeRandom(!lightItems.isEmpty() ? lightItems : droppedLightItems);
+      }
+    }
+  }
+
+  /**
+   * Merges the state of another reservoir sampler with the same capacity into this one. The result
+   * is equivalent to a reservoir that has seen the items of both streams. The other reservoir is
+   * not modified.
+   *
+   * @param other the reservoir sampler to merge
+   */
+  public void merge(ReservoirSampler<T> other) {
+    checkArgument(other.buffer.length == buffer.length);
+    merge(other.toMergeInput());
+  }
+
+  /**
+   * Merges multiple sample collections as returned by {@link #getSamples()} of reservoir samplers
+   * with the given capacity.
+   *
+   * <p>The number of items a reservoir has seen at its current sample rate index is not part of the
+   * samples and is estimated, which is consistent with the extrapolation factors of the samples.
+   *
+   * @param capacity the capacity of the reservoir samplers
+   * @param greatestSampleRateIndexGreaterThanRandomValueOfData the function used by the reservoirs
+   * @param sampleRateIndexToSampleRate the sample rates used by the reservoirs
+   * @param random a random generator
+   * @param sampleCollections the samples to be merged
+   * @return the merged samples
+   */
+  public static <T> Collection<Sample<T>> merge(
+      int capacity,
+      ToIntFunction<? super T> greatestSampleRateIndexGreaterThanRandomValueOfData,
+      IntToDoubleFunction sampleRateIndexToSampleRate,
+      SplittableRandom random,
+      Collection<? extends Collection<Sample<T>>> sampleCollections) {
+    ReservoirSampler<T> merged =
+        new ReservoirSampler<>(
+            capacity,
+            greatestSampleRateIndexGreaterThanRandomValueOfData,
+            sampleRateIndexToSampleRate,
+            random);
+    for (Collection<Sample<T>> samples : sampleCollections) {
+      merged.merge(toMergeInput(samples, capacity));
+    }
+    return merged.getSamples();
+  }
+
+  // reconstructs the state of a reservoir from its samples
+  static <T> MergeInput<T> toMergeInput(Collection<Sample<T>> samples, int capacity) {
+    checkArgument(samples.size() <= capacity);
+    int minIndex = Integer.MAX_VALUE;
+    int maxIndex = 0;
+    for (Sample<T> sample : samples) {
+      minIndex = Math.min(minIndex, sample.getSampleRateIndex());
+      maxIndex = Math.max(maxIndex, sample.getSampleRateIndex());
+    }
+    List<T> items = new ArrayList<>(samples.size());
+    if (samples.size() < capacity) {
+      checkArgument(maxIndex == 0);
+      samples.forEach(sample -> items.add(sample.getItem()));
+      return new MergeInput<>(items, items.size(), 0, 0);
+    }
+    // the upper part of the buffer is empty, if all samples have the same index
+    int level = (minIndex == maxIndex) ? maxIndex + 1 : maxIndex;
+    checkArgument(minIndex >= level - 1);
+    for (Sample<T> sample : samples) {
+      if (sample.getSampleRateIndex() == level) {
+        items.add(sample.getItem());
+      }
+    }
+    int separatorIndex = items.size();
+    for (Sample<T> sample : samples) {
+      if (sample.getSampleRateIndex() == level - 1) {
+        items.add(sample.getItem());
+      }
+    }
+    // the counter is unknown, capacity + separatorIndex is consistent with the extrapolated number
+    // of items, which is (capacity + separatorIndex) / sampleRate(level - 1)
+    return new MergeInput<>(items, separatorIndex, level, capacity + separatorIndex);
+  }
+
+  private <E> E removeRandom(List<E> list) {
+    checkState(!list.isEmpty());
+    int idx = random.nextInt(list.size());
+    E item = list.get(idx);
+    list.set(idx, list.get(list.size() - 1));
+    list.remove(list.size() - 1);
+    return item;
+  }
+
+  public int getNumberOfSamples() {
+    return (bufferSampleRateIndex > 0) ? buffer.length : bufferSeparatorIndex;
+  }
+
+  /**
+   * Returns a cursor over the current samples in the same order as {@link #getSamples()}. The
+   * cursor reads the internal buffer directly and must not be used after further items have been
+   * added or other reservoirs have been merged.
+   *
+   * @return a cursor positioned before the first sample
+   */
+  public Cursor getSampleCursor() {
+    return new Cursor();
+  }
+
+  public final class Cursor {
+    private int pos = -1;
+
+    private Cursor() {}
+
+    public boolean next() {
+      if (pos + 1 < getNumberOfSamples()) {
+        pos += 1;
+        return true;
+      }
+      return false;
+    }
+
+    public T getItem() {
+      checkState(pos >= 0);
+      return (T) buffer[pos];
+    }
+
+    public int getSampleRateIndex() {
+      checkState(pos >= 0);
+      return (pos < bufferSeparatorIndex) ? bufferSampleRateIndex : bufferSampleRateIndex - 1;
+    }
+  }
+
+  /**
+   * Returns a copy of the current samples that is not affected by later changes of the reservoir.
+   * Only the buffer is copied, so the snapshot can be taken cheaply while holding the lock that
+   * guards the reservoir and read by other threads afterwards.
+   *
+   * @return a snapshot of the current samples
+   */
+  public Snapshot<T> getSnapshot() {
+    return new Snapshot<>(
+        Arrays.copyOf(buffer, getNumberOfSamples()), bufferSeparatorIndex, bufferSampleRateIndex);
+  }
+
+  /**
+   * An immutable copy of the samples of a reservoir. The samples are accessed by their position in
+   * the same order as {@link #getSamples()}.
+   */
+  public static final class Snapshot<T> {
+    private final Object[] items;
+    private final int separatorIndex;
+    private final int level;
+
+    private Snapshot(Object[] items, int separatorIndex, int level) {
+      this.items = items;
+      this.separatorIndex = separatorIndex;
+      this.level = level;
+    }
+
+    public int getNumberOfSamples() {
+      return items.length;
+    }
+
+    public T getItem(int pos) {
+      return (T) items[pos];
+    }
+
+    public int getSampleRateIndex(int pos) {
+      checkElementIndex(pos, items.length);
+      return (pos < separatorIndex) ? level : level - 1;
+    }
+  }
+
   public Collection<Sample<T>> getSamples() {
-    List<Sample<T>> list =
-        new ArrayList<>((bufferSampleRateIndex > 0) ? buffer.length : bufferSeparatorIndex);
+    List<Sample<T>> list = new ArrayList<>(getNumberOfSamples());
     for (int i = 0; i < bufferSeparatorIndex; ++i) {
       list.add(new Sample<>((T) buffer[i], bufferSampleRateIndex));
     }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts sampling decisions per sampling rate exponent, sampling decision, root or child span, and
+ * recording mode, and records the duration of {@link AbstractConsistentSampler#shouldSample} in a
+ * histogram with power-of-two bucket boundaries.
+ *
+ * <p>All counters are {@link LongAdder}s, which keep recording cheap under contention. A snapshot
+ * is not atomic across counters.
+ */
+public final class SamplingMetrics {
+
+  private static final int NUM_EXPONENTS = 64;
+  private static final int NUM_RECORDING_MODES = RecordingMode.values().length;
+  private static final int NUM_DECISION_COUNTERS = NUM_EXPONENTS * 2 * 2 * NUM_RECORDING_MODES;
+
+  /** The number of buckets of the duration histogram. */
+  public static final int NUM_DURATION_BUCKETS = 64;
+
+  private final LongAdder[] decisionCounters = createCounters(NUM_DECISION_COUNTERS);
+  private final LongAdder[] durationCounters = createCounters(NUM_DURATION_BUCKETS);
+
+  private static LongAdder[] createCounters(int size) {
+    LongAdder[] counters = new LongAdder[size];
+    for (int i = 0; i < size; ++i) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  private static int getDecisionCounterIndex(
+      int samplingRateExponent, boolean sampled, boolean root, RecordingMode recordingMode) {
+    return (((recordingMode.ordinal() << 1) | (root ? 1 : 0)) << 1 | (sampled ? 1 : 0))
+            * NUM_EXPONENTS
+        + samplingRateExponent;
+  }
+
+  // bucket i > 0 contains durations in the range [2^(i-1), 2^i), bucket 0 contains non-positive
+  // durations
+  private static int getDurationBucketIndex(long durationNanos) {
+    return (durationNanos > 0) ? Math.min(64 - Long.numberOfLeadingZeros(durationNanos), 63) : 0;
+  }
+
+  /**
+   * Returns the exclusive upper bound of the given duration histogram bucket in nanoseconds.
+   *
+   * @param bucketIndex the bucket index
+   * @return the exclusive upper bound
+   */
+  public static long getDurationBucketUpperBoundNanos(int bucketIndex) {
+    checkArgument(bucketIndex >= 0 && bucketIndex < NUM_DURATION_BUCKETS);
+    return (bucketIndex < 63) ? 1L << bucketIndex : Long.MAX_VALUE;
+  }
+
+  void record(
+      int samplingRateExponent,
+      boolean sampled,
+      boolean root,
+      RecordingMode recordingMode,
+      long durationNanos) {
+    decisionCounters[getDecisionCounterIndex(samplingRateExponent, sampled, root, recordingMode)]
+        .increment();
+    durationCounters[getDurationBucketIndex(durationNanos)].increment();
+  }
+
+  /**
+   * Returns a snapshot of the current counter values.
+   *
+   * @return a snapshot
+   */
+  public Snapshot snapshot() {
+    long[] decisionCounts = new long[NUM_DECISION_COUNTERS];
+    for (int i = 0; i < NUM_DECISION_COUNTERS; ++i) {
+      decisionCounts[i] = decisionCounters[i].sum();
+    }
+    long[] durationCounts = new long[NUM_DURATION_BUCKETS];
+    for (int i = 0; i < NUM_DURATION_BUCKETS; ++i) {
+      durationCounts[i] = durationCounters[i].sum();
+    }
+    return new Snapshot(decisionCounts, durationCounts);
+  }
+
+  public static final class Snapshot {
+
+    private final long[] decisionCounts;
+    private final long[] durationCounts;
+
+    private Snapshot(long[] decisionCounts, long[] durationCounts) {
+      this.decisionCounts = decisionCounts;
+      this.durationCounts = durationCounts;
+    }
+
+    public long getCount(
+        int samplingRateExponent, boolean sampled, boolean root, RecordingMode recordingMode) {
+      checkArgument(samplingRateExponent >= 0 && samplingRateExponent < NUM_EXPONENTS);
+      requireNonNull(recordingMode);
+      return decisionCounts[
+          getDecisionCounterIndex(samplingRateExponent, sampled, root, recordingMode)];
+    }
+
+    // returns the number of decisions for the given sampling rate exponent
+    public long getCount(int samplingRateExponent) {
+      long count = 0;
+      for (RecordingMode recordingMode : RecordingMode.values()) {
+        for (int flags = 0; flags < 4; ++flags) {
+          count +=
+              getCount(samplingRateExponent, (flags & 1) != 0, (flags & 2) != 0, recordingMode);
+        }
+      }
+      return count;
+    }
+
+    // returns the total number of sampled or dropped spans
+    public long getCount(boolean sampled) {
+      long count = 0;
+      for (RecordingMode recordingMode : RecordingMode.values()) {
+        for (int samplingRateExponent = 0;
+            samplingRateExponent < NUM_EXPONENTS;
+            ++samplingRateExponent) {
+          count += getCount(samplingRateExponent, sampled, false, recordingMode);
+          count += getCount(samplingRateExponent, sampled, true, recordingMode);
+        }
+      }
+      return count;
+    }
+
+    // returns the expected fraction of sampled spans implied by the recorded sampling rate
+    // exponents, which can be compared with the observed fraction to verify the effective rate
+    public double getExpectedSamplingRate() {
+      double sum = 0;
+      long total = 0;
+      for (int samplingRateExponent = 0;
+          samplingRateExponent < NUM_EXPONENTS;
+          ++samplingRateExponent) {
+        long count = getCount(samplingRateExponent);
+        sum += count * AbstractConsistentSampler.getSamplingRate(samplingRateExponent);
+        total += count;
+      }
+      return (total > 0) ? sum / total : Double.NaN;
+    }
+
+    public long getDurationCount(int bucketIndex) {
+      checkArgument(bucketIndex >= 0 && bucketIndex < NUM_DURATION_BUCKETS);
+      return durationCounts[bucketIndex];
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.COMPACT_SAMPLING_STATE_KEY;
+import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY;
+import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY;
+import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY;
+import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY;
+import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.SAMPLING_UNKNOWN_RATE_EXPONENT;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.ContextKey;
+import io.opentelemetry.context.ImplicitContextKeyed;
+import javax.annotation.CheckForNull;
+
+/**
+ * The consistent sampling information of a span parsed from its trace state.
+ *
+ * <p>Instances are immutable and can be stored in a {@link Context} next to the corresponding span,
+ * for example by the {@link SamplingStatePropagator} when extracting a remote parent, so that
+ * samplers can reuse them for all child spans instead of parsing the trace state again. A stored
+ * instance is only used as long as the span in the context still has the trace state it was parsed
+ * from.
+ */
+public final class SamplingState implements ImplicitContextKeyed {
+
+  public static final int UNKNOWN_GEOMETRIC_RANDOM_VALUE = -1;
+
+  private static final ContextKey<SamplingState> CONTEXT_KEY =
+      ContextKey.named("consistent-sampling-state");
+
+  private static final SamplingState EMPTY =
+      new SamplingState(
+          TraceState.getDefault(),
+          UNKNOWN_GEOMETRIC_RANDOM_VALUE,
+          SAMPLING_UNKNOWN_RATE_EXPONENT,
+          0,
+          null);
+
+  private final TraceState traceState;
+  private final int geometricRandomValue;
+  private final int samplingRateExponent;
+  private final long numberDroppedAncestors;
+  @CheckForNull private final String sampledAncestorSpanId;
+
+  private SamplingState(
+      TraceState traceState,
+      int geometricRandomValue,
+      int samplingRateExponent,
+      long numberDroppedAncestors,
+      @CheckForNull String sampledAncestorSpanId) {
+    this.traceState = traceState;
+    this.geometricRandomValue = geometricRandomValue;
+    this.samplingRateExponent = samplingRateExponent;
+    this.numberDroppedAncestors = numberDroppedAncestors;
+    this.sampledAncestorSpanId = sampledAncestorSpanId;
+  }
+
+  /**
+   * Parses the sampling state from the given trace state.
+   *
+   * @param traceState the trace state
+   * @return the sampling state
+   */
+  public static SamplingState fromTraceState(TraceState traceState) {
+    requireNonNull(traceState);
+    if (traceState.isEmpty()) {
+      return EMPTY;
+    }
+    String compactSamplingState = traceState.get(COMPACT_SAMPLING_STATE_KEY);
+    if (compactSamplingState != null) {
+      return new SamplingState(
+          traceState,
+          toGeometricRandomValue(
+              CompactSamplingStateFormat.parseGeometricRandomValue(compactSamplingState)),
+          toSamplingRateExponent(
+              CompactSamplingStateFormat.parseSamplingRateExponent(compactSamplingState)),
+          CompactSamplingStateFormat.parseNumberDroppedAncestors(compactSamplingState),
+          CompactSamplingStateFormat.parseSampledAncestorSpanId(compactSamplingState));
+    }
+    return new SamplingState(
+        traceState,
+        parseVerboseGeometricRandomValue(traceState),
+        parseVerboseSamplingRateExponent(traceState),
+        parseVerboseNumberDroppedAncestors(traceState),
+        parseVerboseSampledAncestorSpanId(traceState));
+  }
+
+  /**
+   * Returns the sampling state of the span in the given context. A sampling state stored in the
+   * context is reused if it belongs to the trace state of this span, otherwise the trace state is
+   * parsed.
+   *
+   * @param context the context
+   * @return the sampling state
+   */
+  public static SamplingState fromContext(Context context) {
+    TraceState traceState = Span.fromContext(context).getSpanContext().getTraceState();
+    SamplingState samplingState = context.get(CONTEXT_KEY);
+    if (samplingState != null && samplingState.isParsedFrom(traceState)) {
+      return samplingState;
+    }
+    return fromTraceState(traceState);
+  }
+
+  @Override
+  public Context storeInContext(Context context) {
+    return context.with(CONTEXT_KEY, this);
+  }
+
+  boolean isParsedFrom(TraceState traceState) {
+    return this.traceState == traceState;
+  }
+
+  /**
+   * @return the geometric random value in the range [0, 62] or {@link
+   *     #UNKNOWN_GEOMETRIC_RANDOM_VALUE}
+   */
+  public int getGeometricRandomValue() {
+    return geometricRandomValue;
+  }
+
+  /**
+   * @return the sampling rate exponent in the range [0, 63] or {@link
+   *     AbstractConsistentSampler#SAMPLING_UNKNOWN_RATE_EXPONENT}
+   */
+  public int getSamplingRateExponent() {
+    return samplingRateExponent;
+  }
+
+  /** @return the number of dropped ancestors, 0 if not available */
+  public long getNumberDroppedAncestors() {
+    return numberDroppedAncestors;
+  }
+
+  /** @return the span ID of the closest sampled ancestor, null if not available */
+  @CheckForNull
+  public String getSampledAncestorSpanId() {
+    return sampledAncestorSpanId;
+  }
+
+  private static int toGeometricRandomValue(int value) {
+    return (value >= 0) ? value : UNKNOWN_GEOMETRIC_RANDOM_VALUE;
+  }
+
+  private static int toSamplingRateExponent(int value) {
+    return (value >= 0) ? value : SAMPLING_UNKNOWN_RATE_EXPONENT;
+  }
+
+  static int parseGeometricRandomValue(TraceState traceState) {
+    String compactSamplingState = traceState.get(COMPACT_SAMPLING_STATE_KEY);
+    if (compactSamplingState != null) {
+      return toGeometricRandomValue(
+          CompactSamplingStateFormat.parseGeometricRandomValue(compactSamplingState));
+    }
+    return parseVerboseGeometricRandomValue(traceState);
+  }
+
+  private static int parseVerboseGeometricRandomValue(TraceState traceState) {
+    String geometricRandomValueAsString = traceState.get(SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY);
+    if (geometricRandomValueAsString != null) {
+      return toGeometricRandomValue(
+          (int) NumberParser.parseDecimal(geometricRandomValueAsString, 62));
+    }
+    return UNKNOWN_GEOMETRIC_RANDOM_VALUE;
+  }
+
+  static int parseSamplingRateExponent(TraceState traceState) {
+    String compactSamplingState = traceState.get(COMPACT_SAMPLING_STATE_KEY);
+    if (compactSamplingState != null) {
+      return toSamplingRateExponent(
+          CompactSamplingStateFormat.parseSamplingRateExponent(compactSamplingState));
+    }
+    return parseVerboseSamplingRateExponent(traceState);
+  }
+
+  private static int parseVerboseSamplingRateExponent(TraceState traceState) {
+    String pow2SamplingRateAsString = traceState.get(SAMPLING_RATE_EXPONENT_KEY);
+    if (pow2SamplingRateAsString != null) {
+      return toSamplingRateExponent((int) NumberParser.parseDecimal(pow2SamplingRateAsString, 63));
+    }
+    return SAMPLING_UNKNOWN_RATE_EXPONENT;
+  }
+
+  static long parseNumberDroppedAncestors(TraceState traceState) {
+    String compactSamplingState = traceState.get(COMPACT_SAMPLING_STATE_KEY);
+    if (compactSamplingState != null) {
+      return CompactSamplingStateFormat.parseNumberDroppedAncestors(compactSamplingState);
+    }
+    return parseVerboseNumberDroppedAncestors(traceState);
+  }
+
+  private static long parseVerboseNumberDroppedAncestors(TraceState traceState) {
+    String numberDroppedAncestorsAsString = traceState.get(NUMBER_DROPPED_ANCESTORS_KEY);
+    if (numberDroppedAncestorsAsString != null) {
+      long numberDroppedAncestors =
+          NumberParser.parseDecimal(numberDroppedAncestorsAsString, Long.MAX_VALUE);
+      if (numberDroppedAncestors != NumberParser.INVALID) {
+        return numberDroppedAncestors;
+      }
+    }
+    return 0;
+  }
+
+  @CheckForNull
+  static String parseSampledAncestorSpanId(TraceState traceState) {
+    String compactSamplingState = traceState.get(COMPACT_SAMPLING_STATE_KEY);
+    if (compactSamplingState != null) {
+      return CompactSamplingStateFormat.parseSampledAncestorSpanId(compactSamplingState);
+    }
+    return parseVerboseSampledAncestorSpanId(traceState);
+  }
+
+  // the value is propagated to the trace state of dropped child spans and must therefore be a
+  // well-formed span ID, anything else is treated as missing
+  @CheckForNull
+  private static String parseVerboseSampledAncestorSpanId(TraceState traceState) {
+    String sampledAncestorSpanId = traceState.get(SAMPLED_ANCESTOR_SPAN_ID_KEY);
+    if (sampledAncestorSpanId != null
+        && NumberParser.isSpanId(sampledAncestorSpanId, 0, sampledAncestorSpanId.length())) {
+      return sampledAncestorSpanId;
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "SamplingState{"
+        + "geometricRandomValue="
+        + geometricRandomValue
+        + ", samplingRateExponent="
+        + samplingRateExponent
+        + ", numberDroppedAncestors="
+        + numberDroppedAncestors
+        + ", sampledAncestorSpanId="
+        + sampledAncestorSpanId
+        + '}';
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import java.util.Collection;
+
+/**
+ * A propagator that decorates another propagator, usually the W3C trace context propagator, and
+ * stores the {@link SamplingState} of the extracted remote parent span in the context.
+ *
+ * <p>The trace state of the remote parent is then parsed once on extraction, and the consistent
+ * samplers reuse the stored sampling state for all its child spans. Injection is left to the
+ * decorated propagator.
+ */
+public final class SamplingStatePropagator implements TextMapPropagator {
+
+  private final TextMapPropagator delegate;
+
+  public SamplingStatePropagator(TextMapPropagator delegate) {
+    this.delegate = requireNonNull(delegate);
+  }
+
+  @Override
+  public Collection<String> fields() {
+    return delegate.fields();
+  }
+
+  @Override
+  public <C> void inject(Context context, C carrier, TextMapSetter<C> setter) {
+    delegate.inject(context, carrier, setter);
+  }
+
+  @Override
+  public <C> Context extract(Context context, C carrier, TextMapGetter<C> getter) {
+    Context extractedContext = delegate.extract(context, carrier, getter);
+    // nothing has been extracted, or there is nothing to parse
+    if (extractedContext == context
+        || Span.fromContext(extractedContext).getSpanContext().getTraceState().isEmpty()) {
+      return extractedContext;
+    }
+    return extractedContext.with(SamplingState.fromContext(extractedContext));
+  }
+
+  @Override
+  public String toString() {
+    return "SamplingStatePropagator{" + "delegate=" + delegate + '}';
+  }
+}
@@ -26,12 +26,11 @@
  */
 package com.dynatrace.research.otelsampling.sampling;
 
+import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.COMPACT_SAMPLING_STATE_KEY;
 import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY;
 import static com.dynatrace.research.otelsampling.sampling.AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY;
 import static java.util.Objects.requireNonNull;
-import static java.util.stream.Collectors.toList;
 
-import com.dynatrace.research.otelsampling.simulation.TraceUtil;
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.*;
 import io.opentelemetry.sdk.common.InstrumentationLibraryInfo;
@@ -40,11 +39,11 @@ import io.opentelemetry.sdk.trace.data.EventData;
 import io.opentelemetry.sdk.trace.data.LinkData;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import io.opentelemetry.sdk.trace.data.StatusData;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.function.Predicate;
 
 public final class SamplingUtil {
 
@@ -63,56 +62,233 @@ public final class SamplingUtil {
 
     if (spanData.isEmpty()) return Collections.emptyList();
 
-    Predicate<SpanData> predicate = s -> getSamplingRatio(s) > sampleRateThreshold;
+    return downSample(new SpanTable(spanData), sampleRateThreshold, recordingMode).getSpans();
+  }
 
-    Map<String, SpanData> index = TraceUtil.createSpanDataIndex(spanData);
+  /**
+   * Down samples the span data of the given span table, see {@link #downSample(Collection, double,
+   * RecordingMode)}. The span table of the result is derived from the given one without parsing
+   * span IDs again.
+   *
+   * @param spanTable a span table
+   * @param sampleRateThreshold the sample rate threshold
+   * @param recordingMode the recording mode
+   * @return the span table of the down-sampled span data
+   */
+  public static SpanTable downSample(
+      SpanTable spanTable, double sampleRateThreshold, RecordingMode recordingMode) {
+    return new AncestorResolver(spanTable).downSample(sampleRateThreshold, recordingMode);
+  }
 
-    return spanData.stream()
-        .filter(predicate)
-        .map(s -> updateAncestorInformation(s, index, predicate, recordingMode))
-        .collect(toList());
+  /**
+   * Down samples the given collection of span data repeatedly until no span data is left. Each
+   * collection of the result is equal to down sampling the previous one, or the given one for the
+   * first collection, with its smallest sampling ratio as threshold. The last collection is
+   * therefore always empty.
+   *
+   * <p>The span table is built only once and the ancestor information is updated in place
+   * from level to level, so that each level only resolves the ancestors of the surviving spans
+   * across the spans dropped at this level.
+   *
+   * @param spanData a collection of span data
+   * @param recordingMode the recording mode
+   * @return the down-sampled collections of span data in the order of increasing thresholds
+   */
+  public static List<Collection<SpanData>> downSampleAllLevels(
+      Collection<SpanData> spanData, RecordingMode recordingMode) {
+    List<SpanTable> levels = downSampleAllLevels(new SpanTable(spanData), recordingMode);
+    List<Collection<SpanData>> result = new ArrayList<>(levels.size());
+    for (SpanTable level : levels) {
+      result.add(level.getSpans());
+    }
+    return result;
   }
 
-  private static SpanData updateAncestorInformation(
-      SpanData s,
-      Map<String, SpanData> index,
-      Predicate<SpanData> predicate,
-      RecordingMode recordingMode) {
-    SpanData newAncestorSpan = index.get(getAncestorSpanId(s));
-    int newNumberDroppedAncestors = getNumberDroppedAncestors(s);
-    while (newAncestorSpan != null && !predicate.test(newAncestorSpan)) {
-      newNumberDroppedAncestors += getNumberDroppedAncestors(newAncestorSpan);
-      newAncestorSpan = index.get(getAncestorSpanId(newAncestorSpan));
-    }
-    return SpanDataWithModifiedAncestorData.create(
-        s,
-        (newAncestorSpan != null)
-            ? (recordingMode.collectAncestorLink()
-                ? newAncestorSpan.getSpanId()
-                : s.getParentSpanId())
-            : SpanId.getInvalid(),
-        (recordingMode.collectAncestorDistance()) ? 0 : newNumberDroppedAncestors);
+  /**
+   * Down samples the span data of the given span table repeatedly until no span data is left, see
+   * {@link #downSampleAllLevels(Collection, RecordingMode)}. The span tables of all levels are
+   * derived from the given one without parsing span IDs again.
+   *
+   * @param spanTable a span table
+   * @param recordingMode the recording mode
+   * @return the span tables of the down-sampled span data in the order of increasing thresholds
+   */
+  public static List<SpanTable> downSampleAllLevels(
+      SpanTable spanTable, RecordingMode recordingMode) {
+
+    AncestorResolver ancestorResolver = new AncestorResolver(spanTable);
+    double[] sortedSamplingRatios = ancestorResolver.samplingRatios.clone();
+    Arrays.sort(sortedSamplingRatios);
+    int numSpans = sortedSamplingRatios.length;
+
+    if (numSpans > 0 && Double.isNaN(sortedSamplingRatios[numSpans - 1])) {
+      // no span data survives a threshold of NaN
+      return Collections.singletonList(new SpanTable(Collections.emptyList()));
+    }
+
+    List<SpanTable> result = new ArrayList<>();
+    int firstSurvivor = 0;
+    while (firstSurvivor < numSpans) {
+      double threshold = sortedSamplingRatios[firstSurvivor];
+      while (firstSurvivor < numSpans && sortedSamplingRatios[firstSurvivor] <= threshold) {
+        firstSurvivor += 1;
+      }
+      result.add(ancestorResolver.downSample(threshold, recordingMode));
+    }
+    if (result.isEmpty()) {
+      result.add(new SpanTable(Collections.emptyList()));
+    }
+    return result;
+  }
+
+  // the ancestor information of a span table, which is updated in place by each down sampling
+  private static final class AncestorResolver {
+
+    private static final int UNRESOLVED = Integer.MIN_VALUE;
+
+    private final SpanTable spanTable;
+    private final double[] samplingRatios;
+    private final int[] ancestorIndices;
+    private final int[] numbersDroppedAncestors;
+
+    // the span data that have survived all previous down samplings
+    private final boolean[] present;
+
+    // the nearest surviving ancestor of a dropped span and the number of dropped ancestors
+    // accumulated up to it including the span itself, spans are dropped only once, hence the
+    // entries remain valid for the down sampling in which they were computed
+    private final int[] resolvedAncestorIndices;
+    private final int[] resolvedNumbersDroppedAncestors;
+    private final int[] path;
+
+    AncestorResolver(SpanTable spanTable) {
+      this.spanTable = spanTable;
+      int numSpans = spanTable.size();
+
+      samplingRatios = new double[numSpans];
+      ancestorIndices = new int[numSpans];
+      numbersDroppedAncestors = new int[numSpans];
+      for (int i = 0; i < numSpans; ++i) {
+        samplingRatios[i] = spanTable.getSamplingRatio(i);
+        ancestorIndices[i] = spanTable.getAncestorIndex(i);
+        numbersDroppedAncestors[i] = spanTable.getNumberDroppedAncestors(i);
+      }
+
+      present = new boolean[numSpans];
+      Arrays.fill(present, true);
+      resolvedAncestorIndices = new int[numSpans];
+      Arrays.fill(resolvedAncestorIndices, UNRESOLVED);
+      resolvedNumbersDroppedAncestors = new int[numSpans];
+      path = new int[numSpans];
+    }
+
+    private boolean isDropped(int i, double threshold) {
+      return present[i] && !(samplingRatios[i] > threshold);
+    }
+
+    // resolves the chain of dropped spans starting at the given dropped span, every span on the
+    // chain is resolved at most once
+    private void resolve(int i, double threshold) {
+      int depth = 0;
+      int j = i;
+      while (j >= 0 && isDropped(j, threshold) && resolvedAncestorIndices[j] == UNRESOLVED) {
+        path[depth++] = j;
+        j = ancestorIndices[j];
+      }
+      int ancestorIndex;
+      int numberDroppedAncestors;
+      if (j >= 0 && isDropped(j, threshold)) {
+        ancestorIndex = resolvedAncestorIndices[j];
+        numberDroppedAncestors = resolvedNumbersDroppedAncestors[j];
+      } else {
+        ancestorIndex = (j >= 0 && present[j]) ? j : SpanTable.NO_INDEX;
+        numberDroppedAncestors = 0;
+      }
+      while (depth > 0) {
+        int k = path[--depth];
+        numberDroppedAncestors += numbersDroppedAncestors[k];
+        resolvedAncestorIndices[k] = ancestorIndex;
+        resolvedNumbersDroppedAncestors[k] = numberDroppedAncestors;
+      }
+    }
+
+    SpanTable downSample(double threshold, RecordingMode recordingMode) {
+      int numSurvivors = 0;
+      for (int i = 0; i < spanTable.size(); ++i) {
+        if (present[i] && !isDropped(i, threshold)) {
+          path[numSurvivors++] = i;
+        }
+      }
+      // the path is only used for resolving dropped spans, hence the survivors are copied
+      int[] positions = Arrays.copyOf(path, numSurvivors);
+      SpanData[] result = new SpanData[numSurvivors];
+      for (int k = 0; k < numSurvivors; ++k) {
+        int i = positions[k];
+        SpanData span = spanTable.getSpanData(i);
+        if (spanTable.isRoot(i)) {
+          // the ancestor information of root spans is never modified
+          result[k] = span;
+          continue;
+        }
+
+        int ancestorIndex = ancestorIndices[i];
+        int newNumberDroppedAncestors = numbersDroppedAncestors[i];
+        if (ancestorIndex >= 0 && !present[ancestorIndex]) {
+          ancestorIndex = SpanTable.NO_INDEX;
+        } else if (ancestorIndex >= 0 && isDropped(ancestorIndex, threshold)) {
+          resolve(ancestorIndex, threshold);
+          newNumberDroppedAncestors += resolvedNumbersDroppedAncestors[ancestorIndex];
+          ancestorIndex = resolvedAncestorIndices[ancestorIndex];
+        }
+
+        String newAncestorSpanId;
+        if (ancestorIndex < 0) {
+          newAncestorSpanId = SpanId.getInvalid();
+        } else if (recordingMode.collectAncestorLink()) {
+          newAncestorSpanId = spanTable.getSpanData(ancestorIndex).getSpanId();
+        } else {
+          newAncestorSpanId = span.getParentSpanId();
+          ancestorIndex = spanTable.getParentIndex(i);
+        }
+        if (recordingMode.collectAncestorDistance()) {
+          newNumberDroppedAncestors = 0;
+        }
+        // dropped spans are not updated, hence they still provide the ancestor information before
+        // this down sampling to later iterations of this loop
+        ancestorIndices[i] = ancestorIndex;
+        numbersDroppedAncestors[i] = newNumberDroppedAncestors;
+        result[k] =
+            DownSampledSpanData.create(
+                span,
+                newAncestorSpanId,
+                newNumberDroppedAncestors,
+                spanTable.getSamplingRateExponent(i));
+      }
+      for (int i = 0; i < spanTable.size(); ++i) {
+        present[i] = present[i] && samplingRatios[i] > threshold;
+      }
+      return spanTable.select(positions, result, ancestorIndices, numbersDroppedAncestors);
+    }
   }
 
   public static int getNumberDroppedAncestors(SpanData spanData) {
-    String v =
-        spanData
-            .getParentSpanContext()
-            .getTraceState()
-            .get(AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY);
-    if (v == null) {
-      return 0;
-    } else {
-      return Integer.parseInt(v);
+    if (spanData instanceof DownSampledSpanData) {
+      return ((DownSampledSpanData) spanData).numberDroppedAncestors;
     }
+    // saturate instead of throwing for hostile values
+    return (int)
+        Math.min(
+            SamplingState.parseNumberDroppedAncestors(
+                spanData.getParentSpanContext().getTraceState()),
+            Integer.MAX_VALUE);
   }
 
   public static String getAncestorSpanId(SpanData spanData) {
+    if (spanData instanceof DownSampledSpanData) {
+      return ((DownSampledSpanData) spanData).ancestorSpanId;
+    }
     String v =
-        spanData
-            .getParentSpanContext()
-            .getTraceState()
-            .get(AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY);
+        SamplingState.parseSampledAncestorSpanId(spanData.getParentSpanContext().getTraceState());
     if (v == null) {
       return spanData.getParentSpanId();
     } else {
@@ -120,90 +296,156 @@ public final class SamplingUtil {
     }
   }
 
+  /**
+   * Returns the geometric random value of the span, which is the greatest sampling rate exponent
+   * for which the span would still be sampled. If it is not part of the trace state, it is derived
+   * from the trace ID.
+   *
+   * @param spanData the span data
+   * @return the geometric random value
+   */
+  public static int getGeometricRandomValue(SpanData spanData) {
+    return getGeometricRandomValue(spanData.getSpanContext());
+  }
+
+  /**
+   * Returns the geometric random value of the span with the given span context, see {@link
+   * #getGeometricRandomValue(SpanData)}.
+   *
+   * @param spanContext the span context
+   * @return the geometric random value
+   */
+  public static int getGeometricRandomValue(SpanContext spanContext) {
+    int geometricRandomValue = SamplingState.parseGeometricRandomValue(spanContext.getTraceState());
+    if (geometricRandomValue != SamplingState.UNKNOWN_GEOMETRIC_RANDOM_VALUE) {
+      return geometricRandomValue;
+    }
+    return AbstractConsistentSampler.getGeometricRandomValueFromTraceId(spanContext.getTraceId());
+  }
+
   public static double getSamplingRatio(SpanData spanData) {
-    TraceState traceState = spanData.getSpanContext().getTraceState();
-    String pow2ParentSaplingRateAsString =
-        traceState.get(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY);
-    if (pow2ParentSaplingRateAsString != null) {
-      int parentSamplingRateExponent =
-          Integer.parseInt(pow2ParentSaplingRateAsString); // TODO exception handling
-      if (parentSamplingRateExponent >= 0 && parentSamplingRateExponent <= 63) {
-        return 1. / (1 << (parentSamplingRateExponent));
-      }
+    return toSamplingRatio(getSamplingRateExponent(spanData));
+  }
+
+  static int getSamplingRateExponent(SpanData spanData) {
+    if (spanData instanceof DownSampledSpanData) {
+      return ((DownSampledSpanData) spanData).samplingRateExponent;
+    }
+    return SamplingState.parseSamplingRateExponent(spanData.getSpanContext().getTraceState());
+  }
+
+  static double toSamplingRatio(int samplingRateExponent) {
+    if (samplingRateExponent != AbstractConsistentSampler.SAMPLING_UNKNOWN_RATE_EXPONENT) {
+      return 1. / (1 << (samplingRateExponent));
     }
     return Double.NaN;
   }
 
-  private static final class SpanDataWithModifiedAncestorData implements SpanData {
+  // a down-sampled span that keeps the modified ancestor information and the sampling rate
+  // exponent in plain fields, which are read by the accessors of this class, the parent span
+  // context with the correspondingly modified trace state is only built if requested
+  private static final class DownSampledSpanData implements SpanData {
 
     private final SpanData delegate;
-    private final SpanContext newSpanContext;
-
-    private SpanDataWithModifiedAncestorData(
-        SpanData spanData, String newAncestorSpanId, int newNumDroppedAncestors) {
+    private final String ancestorSpanId;
+    private final int numberDroppedAncestors;
+    private final int samplingRateExponent;
+    private SpanContext parentSpanContext;
+
+    private DownSampledSpanData(
+        SpanData spanData,
+        String ancestorSpanId,
+        int numberDroppedAncestors,
+        int samplingRateExponent) {
       this.delegate = requireNonNull(spanData);
-
-      SpanContext parentSpanContext = spanData.getParentSpanContext();
-
-      TraceStateBuilder builder = parentSpanContext.getTraceState().toBuilder();
-      if (!newAncestorSpanId.equals(parentSpanContext.getSpanId())) {
-        builder.put(SAMPLED_ANCESTOR_SPAN_ID_KEY, newAncestorSpanId);
-      } else {
-        builder.remove(SAMPLED_ANCESTOR_SPAN_ID_KEY);
-      }
-      if (newNumDroppedAncestors > 0) {
-        builder.put(NUMBER_DROPPED_ANCESTORS_KEY, Integer.toString(newNumDroppedAncestors));
-      } else {
-        builder.remove(NUMBER_DROPPED_ANCESTORS_KEY);
-      }
-      TraceState traceState = builder.build();
-      newSpanContext =
-          new SpanContext() {
-            @Override
-            public String getTraceId() {
-              return parentSpanContext.getTraceId();
-            }
-
-            @Override
-            public String getSpanId() {
-              return parentSpanContext.getSpanId();
-            }
-
-            @Override
-            public TraceFlags getTraceFlags() {
-              return parentSpanContext.getTraceFlags();
-            }
-
-            @Override
-            public TraceState getTraceState() {
-              return traceState;
-            }
-
-            @Override
-            public boolean isRemote() {
-              return parentSpanContext.isRemote();
-            }
-          };
+      this.ancestorSpanId = ancestorSpanId;
+      this.numberDroppedAncestors = numberDroppedAncestors;
+      this.samplingRateExponent = samplingRateExponent;
     }
 
     private static SpanData create(
-        SpanData spanData, String newAncestorSpanId, int newNumDroppedAncestors) {
+        SpanData spanData,
+        String newAncestorSpanId,
+        int newNumDroppedAncestors,
+        int samplingRateExponent) {
       requireNonNull(spanData);
       requireNonNull(newAncestorSpanId);
       if (spanData.getParentSpanId().equals(SpanId.getInvalid())) {
         return spanData;
       }
-      if (spanData instanceof SpanDataWithModifiedAncestorData) {
-        return new SpanDataWithModifiedAncestorData(
-            ((SpanDataWithModifiedAncestorData) spanData).delegate,
+      if (spanData instanceof DownSampledSpanData) {
+        return new DownSampledSpanData(
+            ((DownSampledSpanData) spanData).delegate,
             newAncestorSpanId,
-            newNumDroppedAncestors);
+            newNumDroppedAncestors,
+            samplingRateExponent);
       } else {
-        return new SpanDataWithModifiedAncestorData(
-            spanData, newAncestorSpanId, newNumDroppedAncestors);
+        return new DownSampledSpanData(
+            spanData, newAncestorSpanId, newNumDroppedAncestors, samplingRateExponent);
       }
     }
 
+    private static SpanContext createParentSpanContext(
+        SpanContext parentSpanContext, String newAncestorSpanId, int newNumDroppedAncestors) {
+      TraceState parentTraceState = parentSpanContext.getTraceState();
+      TraceState traceState;
+      String compactSamplingState = parentTraceState.get(COMPACT_SAMPLING_STATE_KEY);
+      if (compactSamplingState != null) {
+        traceState =
+            parentTraceState
+                .toBuilder()
+                .put(
+                    COMPACT_SAMPLING_STATE_KEY,
+                    CompactSamplingStateFormat.format(
+                        CompactSamplingStateFormat.parseGeometricRandomValue(compactSamplingState),
+                        CompactSamplingStateFormat.parseSamplingRateExponent(compactSamplingState),
+                        newNumDroppedAncestors,
+                        !newAncestorSpanId.equals(parentSpanContext.getSpanId())
+                            ? newAncestorSpanId
+                            : null))
+                .build();
+      } else {
+        TraceStateBuilder builder = parentTraceState.toBuilder();
+        if (!newAncestorSpanId.equals(parentSpanContext.getSpanId())) {
+          builder.put(SAMPLED_ANCESTOR_SPAN_ID_KEY, newAncestorSpanId);
+        } else {
+          builder.remove(SAMPLED_ANCESTOR_SPAN_ID_KEY);
+        }
+        if (newNumDroppedAncestors > 0) {
+          builder.put(NUMBER_DROPPED_ANCESTORS_KEY, Integer.toString(newNumDroppedAncestors));
+        } else {
+          builder.remove(NUMBER_DROPPED_ANCESTORS_KEY);
+        }
+        traceState = builder.build();
+      }
+      return new SpanContext() {
+        @Override
+        public String getTraceId() {
+          return parentSpanContext.getTraceId();
+        }
+
+        @Override
+        public String getSpanId() {
+          return parentSpanContext.getSpanId();
+        }
+
+        @Override
+        public TraceFlags getTraceFlags() {
+          return parentSpanContext.getTraceFlags();
+        }
+
+        @Override
+        public TraceState getTraceState() {
+          return traceState;
+        }
+
+        @Override
+        public boolean isRemote() {
+          return parentSpanContext.isRemote();
+        }
+      };
+    }
+
     @Override
     public String getName() {
       return delegate.getName();
@@ -231,7 +473,15 @@ public final class SamplingUtil {
 
     @Override
     public SpanContext getParentSpanContext() {
-      return newSpanContext;
+      // racing threads build equal span contexts, which are immutable
+      SpanContext result = parentSpanContext;
+      if (result == null) {
+        result =
+            createParentSpanContext(
+                delegate.getParentSpanContext(), ancestorSpanId, numberDroppedAncestors);
+        parentSpanContext = result;
+      }
+      return result;
     }
 
     @Override
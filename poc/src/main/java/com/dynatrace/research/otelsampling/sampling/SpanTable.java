@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+
+/**
+ * A columnar table of span data, usually of a single trace. Span IDs are stored as 64-bit values
+ * and are mapped to positions by an open addressing hash table. The ancestor and the parent of each
+ * span are resolved to positions once, so that walking up ancestor chains neither hashes strings
+ * nor parses trace states.
+ *
+ * <p>Span IDs that are not made of 16 lower-case hexadecimal digits cannot be represented as 64-bit
+ * values. They are indexed by their string representation instead, so that they are neither
+ * confused with each other nor with the invalid span ID.
+ */
+public final class SpanTable {
+
+  /** The position returned if a span is not part of the table. */
+  public static final int NO_INDEX = -1;
+
+  private static final long INVALID_SPAN_ID = 0;
+
+  private final SpanData[] spans;
+  private final long[] spanIds;
+  private final int[] ancestorIndices;
+  private final int[] parentIndices;
+  private final byte[] samplingRateExponents;
+  private final int[] numbersDroppedAncestors;
+  private final boolean[] roots;
+
+  // slots contain the position of a span plus one, or 0 if empty
+  private final int[] slots;
+  private final int shift;
+
+  // the positions of spans with malformed span IDs, null if there are none
+  @CheckForNull private final Map<String, Integer> malformedSpanIdIndices;
+
+  public SpanTable(Collection<? extends SpanData> spanData) {
+    this(spanData.toArray(new SpanData[0]), null);
+    for (int i = 0; i < spans.length; ++i) {
+      ancestorIndices[i] = indexOf(SamplingUtil.getAncestorSpanId(spans[i]));
+      parentIndices[i] = indexOf(spans[i].getParentSpanId());
+      samplingRateExponents[i] = (byte) SamplingUtil.getSamplingRateExponent(spans[i]);
+      numbersDroppedAncestors[i] = SamplingUtil.getNumberDroppedAncestors(spans[i]);
+      roots[i] = spans[i].getParentSpanId().equals(SpanId.getInvalid());
+    }
+  }
+
+  // indexes the span IDs, the span IDs are parsed if they are not given
+  private SpanTable(SpanData[] spans, @CheckForNull long[] spanIds) {
+    int numSpans = spans.length;
+    this.spans = spans;
+    if (spanIds == null) {
+      spanIds = new long[numSpans];
+      for (int i = 0; i < numSpans; ++i) {
+        spanIds[i] = NumberParser.parseSpanId(spans[i].getSpanId());
+      }
+    }
+    this.spanIds = spanIds;
+    ancestorIndices = new int[numSpans];
+    parentIndices = new int[numSpans];
+    samplingRateExponents = new byte[numSpans];
+    numbersDroppedAncestors = new int[numSpans];
+    roots = new boolean[numSpans];
+
+    // the load factor is at most 0.5
+    int numSlotsLog2 = 33 - Integer.numberOfLeadingZeros(Math.max(numSpans, 1));
+    slots = new int[1 << numSlotsLog2];
+    shift = 64 - numSlotsLog2;
+
+    Map<String, Integer> malformedSpanIdIndices = null;
+    for (int i = 0; i < numSpans; ++i) {
+      long spanId = spanIds[i];
+      if (spanId != INVALID_SPAN_ID) {
+        int slot = findSlot(spanId);
+        if (slots[slot] != 0) {
+          throw new IllegalStateException("Duplicate span ID " + spans[i].getSpanId());
+        }
+        slots[slot] = i + 1;
+      } else if (!SpanId.getInvalid().equals(spans[i].getSpanId())) {
+        if (malformedSpanIdIndices == null) {
+          malformedSpanIdIndices = new HashMap<>();
+        }
+        if (malformedSpanIdIndices.putIfAbsent(spans[i].getSpanId(), i) != null) {
+          throw new IllegalStateException("Duplicate span ID " + spans[i].getSpanId());
+        }
+      }
+    }
+    this.malformedSpanIdIndices = malformedSpanIdIndices;
+  }
+
+  // returns the slot containing the given span ID or the empty slot where it would be inserted
+  private int findSlot(long spanId) {
+    int slot = (int) ((spanId * 0x9e3779b97f4a7c15L) >>> shift);
+    while (true) {
+      int entry = slots[slot];
+      if (entry == 0 || spanIds[entry - 1] == spanId) {
+        return slot;
+      }
+      slot = (slot + 1) & (slots.length - 1);
+    }
+  }
+
+  // creates the table of a subset of the spans of this table without parsing any span IDs again,
+  // positions and ancestor indices refer to this table, ancestors that are not selected themselves
+  // are mapped to NO_INDEX
+  SpanTable select(
+      int[] positions,
+      SpanData[] selectedSpans,
+      int[] ancestorIndices,
+      int[] numbersDroppedAncestors) {
+    long[] selectedSpanIds = new long[positions.length];
+    int[] selectedIndices = new int[spans.length];
+    Arrays.fill(selectedIndices, NO_INDEX);
+    for (int k = 0; k < positions.length; ++k) {
+      selectedSpanIds[k] = spanIds[positions[k]];
+      selectedIndices[positions[k]] = k;
+    }
+    SpanTable result = new SpanTable(selectedSpans, selectedSpanIds);
+    for (int k = 0; k < positions.length; ++k) {
+      int i = positions[k];
+      int ancestorIndex = ancestorIndices[i];
+      int parentIndex = parentIndices[i];
+      result.ancestorIndices[k] = (ancestorIndex >= 0) ? selectedIndices[ancestorIndex] : NO_INDEX;
+      result.parentIndices[k] = (parentIndex >= 0) ? selectedIndices[parentIndex] : NO_INDEX;
+      result.samplingRateExponents[k] = samplingRateExponents[i];
+      result.numbersDroppedAncestors[k] = numbersDroppedAncestors[i];
+      result.roots[k] = roots[i];
+    }
+    return result;
+  }
+
+  public int size() {
+    return spans.length;
+  }
+
+  /**
+   * Returns the position of the span with the given ID.
+   *
+   * @param spanId the span ID
+   * @return the position of the span, or {@link #NO_INDEX} if it is not part of the table
+   */
+  public int indexOf(long spanId) {
+    if (spanId == INVALID_SPAN_ID) {
+      return NO_INDEX;
+    }
+    return slots[findSlot(spanId)] - 1;
+  }
+
+  public int indexOf(String spanId) {
+    long value = NumberParser.parseSpanId(spanId);
+    if (value == INVALID_SPAN_ID && malformedSpanIdIndices != null) {
+      return malformedSpanIdIndices.getOrDefault(spanId, NO_INDEX);
+    }
+    return indexOf(value);
+  }
+
+  public SpanData getSpanData(int index) {
+    return spans[index];
+  }
+
+  /**
+   * Returns all span data in the order of their positions.
+   *
+   * @return an unmodifiable list of the span data
+   */
+  public List<SpanData> getSpans() {
+    return Collections.unmodifiableList(Arrays.asList(spans));
+  }
+
+  /**
+   * Returns the span ID as 64-bit value.
+   *
+   * @param index the position of the span
+   * @return the span ID, or 0 if the span ID is invalid or malformed
+   */
+  public long getSpanId(int index) {
+    return spanIds[index];
+  }
+
+  /**
+   * Returns the position of the ancestor span as given by {@link
+   * SamplingUtil#getAncestorSpanId(SpanData)}.
+   *
+   * @param index the position of the span
+   * @return the position of the ancestor span, or {@link #NO_INDEX} if it is not part of the table
+   */
+  public int getAncestorIndex(int index) {
+    return ancestorIndices[index];
+  }
+
+  public int getParentIndex(int index) {
+    return parentIndices[index];
+  }
+
+  public int getSamplingRateExponent(int index) {
+    return samplingRateExponents[index];
+  }
+
+  public double getSamplingRatio(int index) {
+    return SamplingUtil.toSamplingRatio(samplingRateExponents[index]);
+  }
+
+  public int getNumberDroppedAncestors(int index) {
+    return numbersDroppedAncestors[index];
+  }
+
+  /**
+   * Returns whether the span has no parent at all. Spans whose ancestor is not part of the table
+   * are not necessarily root spans.
+   *
+   * @param index the position of the span
+   * @return {@code true} if the parent span ID of the span is invalid
+   */
+  public boolean isRoot(int index) {
+    return roots[index];
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.Sample;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * A thread-safe sampler that maintains a separate reservoir for every key, for example the
+ * combination of service and span name, such that rare keys are not crowded out by frequent ones.
+ *
+ * <p>The given capacity is a cap on the sum of the capacities of all reservoirs. It is shared by at
+ * most {@code maxNumberOfStrata} strata, which are created lazily, and an overflow stratum with the
+ * given overflow key, which must differ from all item keys. A new stratum gets a minimum share of
+ * {@code capacity / (maxNumberOfStrata + 1)} from the capacity that is not allocated yet. If all
+ * strata are in use or the capacity is exhausted, items with new keys are added to the overflow
+ * stratum instead. Strata that did not receive any items since the previous call of {@link
+ * #getSamplesAndReset()} are evicted, which frees their capacity for new keys. Hence, the memory
+ * footprint does not grow with the number of distinct keys.
+ *
+ * <p>When the samples are taken, the capacity is split evenly between the remaining strata and the
+ * overflow stratum, except for the minimum share of one new stratum, which is kept free. If items
+ * with new keys had to go to the overflow stratum, the minimum shares of all strata that are not in
+ * use are kept free instead, so that these keys get their own strata in the next round.
+ *
+ * <p>Keys are compared by {@link Object#equals(Object)} and must be immutable. The map of strata
+ * retains the key instance of the first item of a stratum and never the keys of later items, so
+ * keys do not need to be interned. The samples are returned under this retained instance.
+ *
+ * @param <K> the key type
+ * @param <T> the item type
+ */
+public class StratifiedReservoirSampler<K, T> {
+
+  private final class Stratum {
+    private ReservoirSampler<T> reservoirSampler;
+    private int capacity;
+    private boolean updated = false;
+    private boolean evicted = false;
+
+    private Stratum(int capacity) {
+      this.reservoirSampler = createReservoirSampler(capacity);
+      this.capacity = capacity;
+    }
+  }
+
+  private final int capacity;
+  private final int minStratumCapacity;
+  private final int maxNumberOfStrata;
+  private final K overflowKey;
+  private final Function<? super T, ? extends K> keyFunction;
+  private final ToIntFunction<? super T> greatestSampleRateIndexGreaterThanRandomValueOfData;
+  private final IntToDoubleFunction sampleRateIndexToSampleRate;
+  private final SplittableRandom random;
+
+  // strata are only created and evicted while holding the lock of this sampler
+  private final ConcurrentHashMap<K, Stratum> strata = new ConcurrentHashMap<>();
+  private final AtomicInteger numberOfStrata = new AtomicInteger();
+  // the sum of the capacities of all reservoirs, which never exceeds the capacity
+  private final AtomicInteger allocatedCapacity = new AtomicInteger();
+  private final Stratum overflowStratum;
+
+  public StratifiedReservoirSampler(
+      int capacity,
+      int maxNumberOfStrata,
+      K overflowKey,
+      Function<? super T, ? extends K> keyFunction,
+      ToIntFunction<? super T> greatestSampleRateIndexGreaterThanRandomValueOfData,
+      IntToDoubleFunction sampleRateIndexToSampleRate,
+      SplittableRandom random) {
+    checkArgument(maxNumberOfStrata > 0);
+    this.capacity = capacity;
+    // one share of the capacity is reserved for the overflow stratum
+    this.minStratumCapacity = capacity / (maxNumberOfStrata + 1);
+    checkArgument(minStratumCapacity > 0);
+    this.maxNumberOfStrata = maxNumberOfStrata;
+    this.overflowKey = requireNonNull(overflowKey);
+    this.keyFunction = requireNonNull(keyFunction);
+    this.greatestSampleRateIndexGreaterThanRandomValueOfData =
+        requireNonNull(greatestSampleRateIndexGreaterThanRandomValueOfData);
+    this.sampleRateIndexToSampleRate = requireNonNull(sampleRateIndexToSampleRate);
+    this.random = requireNonNull(random);
+    this.overflowStratum = new Stratum(minStratumCapacity);
+    this.allocatedCapacity.set(minStratumCapacity);
+  }
+
+  private ReservoirSampler<T> createReservoirSampler(int stratumCapacity) {
+    SplittableRandom stratumRandom;
+    synchronized (random) {
+      stratumRandom = random.split();
+    }
+    return new ReservoirSampler<>(
+        stratumCapacity,
+        greatestSampleRateIndexGreaterThanRandomValueOfData,
+        sampleRateIndexToSampleRate,
+        stratumRandom);
+  }
+
+  private boolean canCreateStratum() {
+    return numberOfStrata.get() < maxNumberOfStrata
+        && allocatedCapacity.get() + minStratumCapacity <= capacity;
+  }
+
+  private Stratum getStratum(K key) {
+    Stratum stratum = strata.get(key);
+    if (stratum != null) {
+      return stratum;
+    }
+    // items with new keys do not need the lock, if no stratum can be created anyway
+    if (!canCreateStratum()) {
+      return overflowStratum;
+    }
+    synchronized (this) {
+      stratum = strata.get(key);
+      if (stratum != null) {
+        return stratum;
+      }
+      if (!canCreateStratum()) {
+        return overflowStratum;
+      }
+      stratum = new Stratum(minStratumCapacity);
+      allocatedCapacity.addAndGet(minStratumCapacity);
+      numberOfStrata.incrementAndGet();
+      strata.put(key, stratum);
+      return stratum;
+    }
+  }
+  public void add(T item) {
+    requireNonNull(item);
+    K key = requireNonNull(keyFunction.apply(item));
+    while (true) {
+      Stratum stratum = getStratum(key);
+      synchronized (stratum) {
+        // retry if the stratum has been evicted concurrently
+        if (!stratum.evicted) {
+          stratum.reservoirSampler.add(item);
+          stratum.updated = true;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the samples of all strata that received items since the previous call and starts new
+   * reservoirs for them. Strata without any items are evicted first, and the new reservoirs share
+   * the capacity, which is not kept free for new strata, evenly with the overflow stratum.
+   *
+   * @return the samples by key
+   */
+  public synchronized Map<K, Collection<Sample<T>>> getSamplesAndReset() {
+    Iterator<Stratum> iterator = strata.values().iterator();
+    while (iterator.hasNext()) {
+      Stratum stratum = iterator.next();
+      synchronized (stratum) {
+        if (!stratum.updated) {
+          stratum.evicted = true;
+          iterator.remove();
+          numberOfStrata.decrementAndGet();
+          allocatedCapacity.addAndGet(-stratum.capacity);
+        }
+      }
+    }
+
+    // no strata are created concurrently, as this sampler is locked, hence all remaining strata
+    // have been updated and get new reservoirs
+    int numberOfRemainingStrata = numberOfStrata.get();
+    int numberOfFreeStrata = maxNumberOfStrata - numberOfRemainingStrata;
+    int numberOfReservedStrata;
+    synchronized (overflowStratum) {
+      numberOfReservedStrata =
+          overflowStratum.updated ? numberOfFreeStrata : Math.min(1, numberOfFreeStrata);
+    }
+    int stratumCapacity =
+        (capacity - numberOfReservedStrata * minStratumCapacity) / (numberOfRemainingStrata + 1);
+
+    Map<K, Collection<Sample<T>>> result = new HashMap<>();
+    for (Map.Entry<K, Stratum> entry : strata.entrySet()) {
+      Stratum stratum = entry.getValue();
+      synchronized (stratum) {
+        result.put(entry.getKey(), takeSamples(stratum, stratumCapacity));
+      }
+    }
+    synchronized (overflowStratum) {
+      if (overflowStratum.updated) {
+        result.put(overflowKey, takeSamples(overflowStratum, stratumCapacity));
+      } else {
+        // the overflow stratum is never evicted, but its empty reservoir is resized
+        takeSamples(overflowStratum, stratumCapacity);
+      }
+    }
+    allocatedCapacity.set((numberOfRemainingStrata + 1) * stratumCapacity);
+    return result;
+  }
+
+  private Collection<Sample<T>> takeSamples(Stratum stratum, int stratumCapacity) {
+    Collection<Sample<T>> samples = stratum.reservoirSampler.getSamples();
+    stratum.reservoirSampler = createReservoirSampler(stratumCapacity);
+    stratum.capacity = stratumCapacity;
+    stratum.updated = false;
+    return samples;
+  }
+
+  public int getNumberOfStrata() {
+    return numberOfStrata.get();
+  }
+
+  // the sum of the capacities of all reservoirs
+  int getAllocatedCapacity() {
+    return allocatedCapacity.get();
+  }
+}
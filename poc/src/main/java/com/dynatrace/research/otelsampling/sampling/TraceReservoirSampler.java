@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sampler that keeps or drops all spans of a trace together. A trace is kept as long as its
+ * geometric random value is greater than or equal to the current sample rate index. Whenever the
+ * total number of kept spans exceeds the capacity, all traces with the smallest kept geometric
+ * random value are dropped and the sample rate index is incremented. Spans of dropped traces that
+ * arrive later are ignored, hence the kept traces are complete.
+ */
+public final class TraceReservoirSampler {
+
+  private static final int NUM_GEOMETRIC_RANDOM_VALUES = 63;
+
+  private final int spanCapacity;
+
+  // kept traces grouped by their geometric random value
+  private final List<Map<String, List<SpanData>>> tracesByGeometricRandomValue;
+  private final int[] numSpansByGeometricRandomValue = new int[NUM_GEOMETRIC_RANDOM_VALUES];
+  private int numSpans = 0;
+  private int sampleRateIndex = 0;
+
+  public TraceReservoirSampler(int spanCapacity) {
+    checkArgument(spanCapacity > 0);
+    this.spanCapacity = spanCapacity;
+    this.tracesByGeometricRandomValue = new ArrayList<>(NUM_GEOMETRIC_RANDOM_VALUES);
+    for (int i = 0; i < NUM_GEOMETRIC_RANDOM_VALUES; ++i) {
+      tracesByGeometricRandomValue.add(new HashMap<>());
+    }
+  }
+
+  public void add(SpanData spanData) {
+    requireNonNull(spanData);
+    int geometricRandomValue = SamplingUtil.getGeometricRandomValue(spanData);
+    if (geometricRandomValue < sampleRateIndex) {
+      return;
+    }
+    tracesByGeometricRandomValue
+        .get(geometricRandomValue)
+        .computeIfAbsent(spanData.getTraceId(), k -> new ArrayList<>())
+        .add(spanData);
+    numSpansByGeometricRandomValue[geometricRandomValue] += 1;
+    numSpans += 1;
+    while (numSpans > spanCapacity) {
+      // drop all traces with the smallest kept geometric random value
+      tracesByGeometricRandomValue.get(sampleRateIndex).clear();
+      numSpans -= numSpansByGeometricRandomValue[sampleRateIndex];
+      numSpansByGeometricRandomValue[sampleRateIndex] = 0;
+      sampleRateIndex += 1;
+    }
+  }
+
+  /**
+   * Returns the sample rate index. All kept traces have been sampled with a sample rate of
+   * 2^(-sampleRateIndex) in addition to the sampling rate of their spans.
+   *
+   * @return the sample rate index
+   */
+  public int getSampleRateIndex() {
+    return sampleRateIndex;
+  }
+
+  public int getNumberOfSpans() {
+    return numSpans;
+  }
+
+  /**
+   * Returns the spans of all kept traces, which can be passed to {@link
+   * com.dynatrace.research.otelsampling.simulation.TraceUtil#extractTrees(java.util.Collection)}.
+   *
+   * @return the kept spans
+   */
+  public List<SpanData> getSpans() {
+    List<SpanData> spans = new ArrayList<>(numSpans);
+    for (int i = sampleRateIndex; i < NUM_GEOMETRIC_RANDOM_VALUES; ++i) {
+      for (List<SpanData> traceSpans : tracesByGeometricRandomValue.get(i).values()) {
+        spans.addAll(traceSpans);
+      }
+    }
+    return spans;
+  }
+
+  public int getNumberOfTraces() {
+    int numTraces = 0;
+    for (int i = sampleRateIndex; i < NUM_GEOMETRIC_RANDOM_VALUES; ++i) {
+      numTraces += tracesByGeometricRandomValue.get(i).size();
+    }
+    return numTraces;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static java.util.Objects.requireNonNull;
+
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.MergeInput;
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.Sample;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * A thread-safe reservoir sampler for consecutive time windows, whose {@link #add(Object)} is
+ * wait-free after the first call of a thread.
+ *
+ * <p>Every adding thread owns two reservoir samplers with full capacity, one for the current and
+ * one for the previous window, and adds items without any locks. {@link #getSamplesAndReset()}
+ * switches all threads to their other reservoir and waits until no thread is still accessing the
+ * reservoir of the closed window, which takes at most the duration of a single add. Then these
+ * reservoirs are merged, which respects the sample rate indices in the same way as if all items
+ * had been added to a single reservoir, and reset for the window after the next.
+ *
+ * <p>The memory footprint is proportional to the number of adding threads, which should be
+ * bounded, for example by using thread pools. The reservoirs of terminated threads are released
+ * once all their items have been taken.
+ *
+ * @param <T> the item type
+ */
+public class WindowedReservoirSampler<T> {
+
+  private final class ThreadReservoirs {
+    private final WeakReference<Thread> thread = new WeakReference<>(Thread.currentThread());
+    // indexed by the parity of the window
+    private final ReservoirSampler<T>[] reservoirs;
+    // odd while the owning thread accesses a reservoir, only written by the owning thread
+    private volatile int accessCount = 0;
+
+    private ThreadReservoirs() {
+      @SuppressWarnings("unchecked")
+      ReservoirSampler<T>[] reservoirs = new ReservoirSampler[2];
+      synchronized (random) {
+        for (int i = 0; i < reservoirs.length; ++i) {
+          reservoirs[i] =
+              new ReservoirSampler<>(
+                  capacity,
+                  greatestSampleRateIndexGreaterThanRandomValueOfData,
+                  sampleRateIndexToSampleRate,
+                  random.split());
+        }
+      }
+      this.reservoirs = reservoirs;
+    }
+
+    // announcing the access before reading the window guarantees that getSamplesAndReset either
+    // waits for this access to finish or that the reservoir of the new window is accessed
+    private ReservoirSampler<T> beginAccess() {
+      accessCount += 1;
+      return reservoirs[window & 1];
+    }
+
+    private void endAccess() {
+      accessCount += 1;
+    }
+
+    private void awaitAccess() {
+      int count = accessCount;
+      if ((count & 1) != 0) {
+        while (accessCount == count) {
+          Thread.yield();
+        }
+      }
+    }
+
+    private boolean isTerminated() {
+      Thread t = thread.get();
+      return t == null || !t.isAlive();
+    }
+  }
+
+  private final int capacity;
+  private final ToIntFunction<? super T> greatestSampleRateIndexGreaterThanRandomValueOfData;
+  private final IntToDoubleFunction sampleRateIndexToSampleRate;
+  private final SplittableRandom random;
+
+  private final ConcurrentLinkedQueue<ThreadReservoirs> allThreadReservoirs =
+      new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<ThreadReservoirs> threadReservoirs =
+      ThreadLocal.withInitial(this::register);
+  // only incremented by getSamplesAndReset
+  private volatile int window = 0;
+
+  public WindowedReservoirSampler(
+      int capacity,
+      ToIntFunction<? super T> greatestSampleRateIndexGreaterThanRandomValueOfData,
+      IntToDoubleFunction sampleRateIndexToSampleRate,
+      SplittableRandom random) {
+    this.capacity = capacity;
+    this.greatestSampleRateIndexGreaterThanRandomValueOfData =
+        requireNonNull(greatestSampleRateIndexGreaterThanRandomValueOfData);
+    this.sampleRateIndexToSampleRate = requireNonNull(sampleRateIndexToSampleRate);
+    this.random = requireNonNull(random);
+  }
+
+  private ThreadReservoirs register() {
+    ThreadReservoirs reservoirs = new ThreadReservoirs();
+    allThreadReservoirs.add(reservoirs);
+    return reservoirs;
+  }
+
+  public void add(T item) {
+    requireNonNull(item);
+    ThreadReservoirs reservoirs = threadReservoirs.get();
+    try {
+      reservoirs.beginAccess().add(item);
+    } finally {
+      reservoirs.endAccess();
+    }
+  }
+
+  /**
+   * Returns whether an item with the given greatest sample rate index might be kept, if it is added
+   * by the current thread. If {@code false} is returned, the item would have been dropped from the
+   * sample of the current window at the time of the call. This allows to skip expensive
+   * preparation of items that will not make it into the sample.
+   *
+   * @param greatestSampleRateIndex the greatest sample rate index of the item
+   * @return {@code false} if the item would be dropped
+   */
+  public boolean mayAccept(int greatestSampleRateIndex) {
+    ThreadReservoirs reservoirs = threadReservoirs.get();
+    try {
+      return reservoirs.beginAccess().mayAccept(greatestSampleRateIndex);
+    } finally {
+      reservoirs.endAccess();
+    }
+  }
+
+  /**
+   * Closes the current window and returns its samples. Every added item is either part of the
+   * returned samples or of the samples of the next window.
+   *
+   * @return the samples of all items added since the last call
+   */
+  public synchronized Collection<Sample<T>> getSamplesAndReset() {
+    int closedWindow = window;
+    window = closedWindow + 1;
+
+    List<MergeInput<T>> states = new ArrayList<>();
+    Iterator<ThreadReservoirs> iterator = allThreadReservoirs.iterator();
+    while (iterator.hasNext()) {
+      ThreadReservoirs reservoirs = iterator.next();
+      // the owning thread might still be adding an item to the reservoir of the closed window
+      reservoirs.awaitAccess();
+      ReservoirSampler<T> reservoir = reservoirs.reservoirs[closedWindow & 1];
+      if (reservoir.getNumberOfSamples() > 0) {
+        states.add(reservoir.toMergeInput());
+        reservoir.reset();
+      }
+      // the reservoir of the current window of a terminated thread is taken by the next call
+      if (reservoirs.isTerminated()
+          && reservoirs.reservoirs[window & 1].getNumberOfSamples() == 0) {
+        iterator.remove();
+      }
+    }
+
+    ReservoirSampler<T> merged;
+    synchronized (random) {
+      merged =
+          new ReservoirSampler<>(
+              capacity,
+              greatestSampleRateIndexGreaterThanRandomValueOfData,
+              sampleRateIndexToSampleRate,
+              random.split());
+    }
+    for (MergeInput<T> state : states) {
+      merged.merge(state);
+    }
+    return merged.getSamples();
+  }
+
+  // the number of threads whose reservoirs are retained
+  int getNumberOfThreads() {
+    return allThreadReservoirs.size();
+  }
+}
@@ -31,6 +31,7 @@ import io.opentelemetry.api.trace.TraceId;
 import io.opentelemetry.sdk.trace.IdGenerator;
 import java.util.SplittableRandom;
 
+// thread-safe, the generated sequence of IDs is deterministic if used by a single thread
 public class DeterministicIdGenerator implements IdGenerator {
 
   private static final long INVALID_ID = 0;
@@ -41,7 +42,7 @@ public class DeterministicIdGenerator implements IdGenerator {
   }
 
   @Override
-  public String generateSpanId() {
+  public synchronized String generateSpanId() {
     long id;
     do {
       id = random.nextLong();
@@ -50,7 +51,7 @@ public class DeterministicIdGenerator implements IdGenerator {
   }
 
   @Override
-  public String generateTraceId() {
+  public synchronized String generateTraceId() {
     long idHi;
     long idLo;
     do {
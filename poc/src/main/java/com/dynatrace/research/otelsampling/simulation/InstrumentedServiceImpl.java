@@ -28,6 +28,8 @@ package com.dynatrace.research.otelsampling.simulation;
 
 import static java.util.Objects.requireNonNull;
 
+import com.dynatrace.research.otelsampling.sampling.SamplingState;
+import com.dynatrace.research.otelsampling.sampling.SwappableSampler;
 import com.google.common.hash.Hashing;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
@@ -36,7 +38,6 @@ import io.opentelemetry.api.trace.SpanContext;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
-import io.opentelemetry.sdk.trace.IdGenerator;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
@@ -46,10 +47,8 @@ import javax.annotation.CheckForNull;
 public class InstrumentedServiceImpl implements InstrumentedService {
 
   private final String id;
-  private final IdGenerator idGenerator;
-  private SdkTracerProvider sdkTracerProvider;
-  private OpenTelemetry openTelemetry;
-  private final SpanExporter spanExporter;
+  private final SwappableSampler sampler;
+  private final Tracer tracer;
 
   InstrumentedServiceImpl(String id, long hashSalt, SpanExporter spanExporter) {
 
@@ -59,47 +58,75 @@ public class InstrumentedServiceImpl implements InstrumentedService {
     long seed =
         Hashing.murmur3_128().newHasher().putLong(hashSalt).putUnencodedChars(id).hash().asLong();
 
-    this.idGenerator = new DeterministicIdGenerator(seed);
-    this.spanExporter = requireNonNull(spanExporter);
-    this.id = requireNonNull(id);
+    this.id = id;
+    this.sampler = new SwappableSampler(Sampler.alwaysOn());
 
-    setSampler(Sampler.alwaysOn());
+    // the provider is built once, sampler changes are applied by swapping the delegate
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setIdGenerator(new DeterministicIdGenerator(seed))
+            .setSampler(sampler)
+            .addSpanProcessor(SimpleSpanProcessor.create(spanExporter))
+            .build();
+    OpenTelemetry openTelemetry =
+        OpenTelemetrySdk.builder().setTracerProvider(sdkTracerProvider).build();
+    this.tracer = openTelemetry.getTracer("instrumentation@" + id);
   }
 
-  @Override
-  public synchronized CallContext call(@CheckForNull CallContext callContext) {
+  // the sampling state of a span is parsed at most once and then reused for all its children
+  private static final class CallContextImpl implements CallContext {
+    private final Span span;
+    @CheckForNull private SamplingState samplingState;
 
-    Tracer tracer = openTelemetry.getTracer("instrumentation@" + id);
-    SpanBuilder spanBuilder = tracer.spanBuilder("span@" + id);
-    if (callContext != null) {
-      spanBuilder.setParent(Context.current().with(Span.wrap(callContext.getSpanContext())));
+    private CallContextImpl(Span span) {
+      this.span = span;
     }
-    Span span = spanBuilder.startSpan();
-    return new CallContext() {
-      @Override
-      public void close() {
-        span.end();
-      }
 
-      @Override
-      public SpanContext getSpanContext() {
-        return span.getSpanContext();
+    private SamplingState getSamplingState() {
+      // racy but benign, sampling states are immutable
+      SamplingState result = samplingState;
+      if (result == null) {
+        result = SamplingState.fromTraceState(span.getSpanContext().getTraceState());
+        samplingState = result;
       }
-    };
+      return result;
+    }
+
+    @Override
+    public void close() {
+      span.end();
+    }
+
+    @Override
+    public SpanContext getSpanContext() {
+      return span.getSpanContext();
+    }
   }
 
-  @Override
-  public synchronized void setSampler(Sampler sampler) {
+  private static SamplingState getSamplingState(CallContext callContext) {
+    if (callContext instanceof CallContextImpl) {
+      return ((CallContextImpl) callContext).getSamplingState();
+    }
+    return SamplingState.fromTraceState(callContext.getSpanContext().getTraceState());
+  }
 
-    requireNonNull(sampler);
+  @Override
+  public CallContext call(@CheckForNull CallContext callContext) {
 
-    sdkTracerProvider =
-        SdkTracerProvider.builder()
-            .setIdGenerator(idGenerator)
-            .setSampler(sampler)
-            .addSpanProcessor(SimpleSpanProcessor.create(spanExporter))
-            .build();
+    SpanBuilder spanBuilder = tracer.spanBuilder("span@" + id);
+    if (callContext != null) {
+      // the parsed sampling state is stored next to the parent span, so that consistent samplers
+      // do not need to parse the trace state of the parent again
+      spanBuilder.setParent(
+          Context.current()
+              .with(Span.wrap(callContext.getSpanContext()))
+              .with(getSamplingState(callContext)));
+    }
+    return new CallContextImpl(spanBuilder.startSpan());
+  }
 
-    openTelemetry = OpenTelemetrySdk.builder().setTracerProvider(sdkTracerProvider).build();
+  @Override
+  public void setSampler(Sampler sampler) {
+    this.sampler.setSampler(sampler);
   }
 }
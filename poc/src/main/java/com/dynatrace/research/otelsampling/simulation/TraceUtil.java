@@ -30,7 +30,7 @@ import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toMap;
 
-import com.dynatrace.research.otelsampling.sampling.SamplingUtil;
+import com.dynatrace.research.otelsampling.sampling.SpanTable;
 import com.dynatrace.research.otelsampling.simulation.InstrumentedService.CallContext;
 import com.dynatrace.research.otelsampling.tree.Tree;
 import com.dynatrace.research.otelsampling.tree.TreeStructure;
@@ -40,7 +40,6 @@ import io.opentelemetry.sdk.trace.data.SpanData;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
 import io.opentelemetry.sdk.trace.samplers.Sampler;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -80,52 +79,75 @@ public final class TraceUtil {
     return spanDataCollection.stream().collect(toMap(SpanData::getSpanId, identity()));
   }
 
-  // TODO in some cases subtrees could be merged, by adding an unknown common root node
   private static List<Tree<SpanData>> extractTreesHelper(
       Collection<? extends SpanData> spanDataCollection) {
 
     Preconditions.checkArgument(
         spanDataCollection.stream().map(SpanData::getTraceId).distinct().count() == 1);
 
-    Map<String, SpanData> index = createSpanDataIndex(spanDataCollection);
-    Map<String, List<SpanData>> childSpans =
-        spanDataCollection.stream()
-            .collect(
-                Collectors.groupingBy(
-                    SamplingUtil::getAncestorSpanId, Collectors.<SpanData>toList()));
-    Collection<SpanData> rootSpans =
-        spanDataCollection.stream()
-            .filter(s -> !index.containsKey(SamplingUtil.getAncestorSpanId(s)))
-            .collect(Collectors.<SpanData>toList());
-
-    List<Tree<SpanData>> result = new ArrayList<>(rootSpans.size());
-
-    for (SpanData rootSpan : rootSpans) {
-      Map<String, Integer> spanToIndex = new HashMap<>();
-      spanToIndex.put(rootSpan.getSpanId(), 0);
+    return extractTreesHelper(new SpanTable(spanDataCollection));
+  }
+
+  // TODO in some cases subtrees could be merged, by adding an unknown common root node
+  private static List<Tree<SpanData>> extractTreesHelper(SpanTable spanTable) {
+    int numSpans = spanTable.size();
+
+    // the children of the span at position i are childIndices[childOffsets[i]] to
+    // childIndices[childOffsets[i + 1] - 1] in the order of the given collection
+    int[] childOffsets = new int[numSpans + 1];
+    for (int i = 0; i < numSpans; ++i) {
+      int ancestorIndex = spanTable.getAncestorIndex(i);
+      if (ancestorIndex != SpanTable.NO_INDEX) {
+        childOffsets[ancestorIndex + 1] += 1;
+      }
+    }
+    for (int i = 0; i < numSpans; ++i) {
+      childOffsets[i + 1] += childOffsets[i];
+    }
+    int[] childIndices = new int[childOffsets[numSpans]];
+    int[] childCounts = new int[numSpans];
+    for (int i = 0; i < numSpans; ++i) {
+      int ancestorIndex = spanTable.getAncestorIndex(i);
+      if (ancestorIndex != SpanTable.NO_INDEX) {
+        childIndices[childOffsets[ancestorIndex] + childCounts[ancestorIndex]] = i;
+        childCounts[ancestorIndex] += 1;
+      }
+    }
+
+    List<Tree<SpanData>> result = new ArrayList<>();
+    int[] nodeIndices = new int[numSpans];
+    IntArrayQueue buffer = new IntArrayQueue(numSpans);
+
+    for (int rootIndex = 0; rootIndex < numSpans; ++rootIndex) {
+      if (spanTable.getAncestorIndex(rootIndex) != SpanTable.NO_INDEX) continue;
+
+      nodeIndices[rootIndex] = 0;
       Builder builder = TreeStructure.builder();
       int spanCounter = 1;
 
-      Deque<SpanData> buffer =
-          new ArrayDeque<>(childSpans.getOrDefault(rootSpan.getSpanId(), Collections.emptyList()));
-      while (!buffer.isEmpty()) {
-        SpanData s = buffer.remove();
-        builder.addNode(spanToIndex.get(SamplingUtil.getAncestorSpanId(s)));
-        for (int i = 0; i < SamplingUtil.getNumberDroppedAncestors(s); ++i) {
+      // the queue holds all spans of the tree once it is exhausted
+      buffer.clear();
+      buffer.addChildren(rootIndex, childOffsets, childIndices);
+      while (buffer.hasNext()) {
+        int s = buffer.next();
+        builder.addNode(nodeIndices[spanTable.getAncestorIndex(s)]);
+        for (int i = 0; i < spanTable.getNumberDroppedAncestors(s); ++i) {
           builder.addNode(spanCounter);
           spanCounter += 1;
         }
-        spanToIndex.put(s.getSpanId(), spanCounter);
+        nodeIndices[s] = spanCounter;
         spanCounter += 1;
 
-        buffer.addAll(childSpans.getOrDefault(s.getSpanId(), Collections.emptyList()));
+        buffer.addChildren(s, childOffsets, childIndices);
       }
 
       TreeStructure treeStructure = builder.build();
       Tree<SpanData> tree = new Tree<>(treeStructure);
 
-      for (Entry<String, Integer> entry : spanToIndex.entrySet()) {
-        tree.set(entry.getValue(), index.get(entry.getKey()));
+      tree.set(0, spanTable.getSpanData(rootIndex));
+      for (int k = 0; k < buffer.size(); ++k) {
+        int s = buffer.get(k);
+        tree.set(nodeIndices[s], spanTable.getSpanData(s));
       }
 
       result.add(tree);
@@ -133,6 +155,44 @@ public final class TraceUtil {
     return result;
   }
 
+  // a queue of span positions that keeps the removed elements until it is cleared
+  private static final class IntArrayQueue {
+    private final int[] elements;
+    private int head = 0;
+    private int tail = 0;
+
+    IntArrayQueue(int capacity) {
+      elements = new int[capacity];
+    }
+
+    void clear() {
+      head = 0;
+      tail = 0;
+    }
+
+    void addChildren(int index, int[] childOffsets, int[] childIndices) {
+      for (int k = childOffsets[index]; k < childOffsets[index + 1]; ++k) {
+        elements[tail++] = childIndices[k];
+      }
+    }
+
+    boolean hasNext() {
+      return head < tail;
+    }
+
+    int next() {
+      return elements[head++];
+    }
+
+    int size() {
+      return tail;
+    }
+
+    int get(int k) {
+      return elements[k];
+    }
+  }
+
   public static List<Tree<SpanData>> extractTrees(
       Collection<? extends SpanData> spanDataCollection) {
 
@@ -144,6 +204,21 @@ public final class TraceUtil {
         .collect(Collectors.toList());
   }
 
+  /**
+   * Extracts the trees of a single trace from its span table, which avoids building the span table
+   * again if it is already available.
+   *
+   * @param spanTable the span table of spans belonging to the same trace
+   * @return the trees of the trace
+   */
+  public static List<Tree<SpanData>> extractTrees(SpanTable spanTable) {
+    for (int i = 1; i < spanTable.size(); ++i) {
+      Preconditions.checkArgument(
+          spanTable.getSpanData(i).getTraceId().equals(spanTable.getSpanData(0).getTraceId()));
+    }
+    return extractTreesHelper(spanTable);
+  }
+
   /*private static double[] extractAllSampleRates(Tree<SpanData> tree) {
     Set<Double> sampleRates = new HashSet<>();
     for (int nodeIdx = 0; nodeIdx < tree.getTreeStructure().getNumberOfNodes(); ++nodeIdx) {
@@ -89,6 +89,11 @@ public class EstimationUtilTest {
                     return random.nextBoolean();
                   }
 
+                  @Override
+                  protected long generateRandomLong() {
+                    return random.nextLong();
+                  }
+
                   @Override
                   protected RecordingMode getRecordingMode() {
                     return recordingMode;
@@ -144,6 +149,11 @@ public class EstimationUtilTest {
                     return random.nextBoolean();
                   }
 
+                  @Override
+                  protected long generateRandomLong() {
+                    return random.nextLong();
+                  }
+
                   @Override
                   protected RecordingMode getRecordingMode() {
                     return recordingMode;
@@ -201,6 +211,11 @@ public class EstimationUtilTest {
                     return random.nextBoolean();
                   }
 
+                  @Override
+                  protected long generateRandomLong() {
+                    return random.nextLong();
+                  }
+
                   @Override
                   protected RecordingMode getRecordingMode() {
                     return recordingMode;
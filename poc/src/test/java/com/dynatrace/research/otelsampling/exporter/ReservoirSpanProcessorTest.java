@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.dynatrace.research.otelsampling.sampling.ConsistentFixedRateSampler;
+import com.dynatrace.research.otelsampling.sampling.SamplingUtil;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ReservoirSpanProcessorTest {
+
+  @Test
+  public void testReservoirSpanProcessor() {
+    int capacity = 20;
+    int numSpans = 1000;
+
+    CollectingSpanExporter exporter = new CollectingSpanExporter();
+    ReservoirSpanProcessor processor =
+        new ReservoirSpanProcessor(exporter, capacity, 1, TimeUnit.HOURS);
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(new ConsistentFixedRateSampler(1.))
+            .addSpanProcessor(processor)
+            .build();
+    Tracer tracer = tracerProvider.get("test");
+
+    for (int i = 0; i < numSpans; ++i) {
+      tracer.spanBuilder("span").startSpan().end();
+    }
+    assertTrue(processor.forceFlush().join(10, TimeUnit.SECONDS).isSuccess());
+
+    List<SpanData> spans = exporter.getSpans();
+    assertEquals(capacity, spans.size());
+    Set<String> spanIds = new HashSet<>();
+    spans.forEach(span -> spanIds.add(span.getSpanId()));
+    assertEquals(capacity, spanIds.size());
+    // spans with large geometric random values are preferred
+    assertTrue(
+        spans.stream().mapToInt(SamplingUtil::getGeometricRandomValue).average().getAsDouble()
+            > 2.);
+
+    // the next window is empty
+    assertTrue(processor.forceFlush().join(10, TimeUnit.SECONDS).isSuccess());
+    assertEquals(capacity, exporter.getSpans().size());
+
+    tracer.spanBuilder("span").startSpan().end();
+    assertTrue(tracerProvider.shutdown().join(10, TimeUnit.SECONDS).isSuccess());
+    assertEquals(capacity + 1, exporter.getSpans().size());
+  }
+}
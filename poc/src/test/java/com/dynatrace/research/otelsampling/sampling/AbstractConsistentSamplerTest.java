@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.hipparchus.stat.inference.GTest;
+import org.junit.Test;
+
+public class AbstractConsistentSamplerTest {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+  private static final String NAME = "name";
+  private static final SpanKind SPAN_KIND = SpanKind.SERVER;
+  private static final Attributes ATTRIBUTES = Attributes.empty();
+  private static final List<LinkData> PARENT_LINKS = Collections.emptyList();
+
+  private static long getAllocatedBytesOfCurrentThread() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static Sampler createSampler(int geometricRandomValue, double samplingRate) {
+    return new ConsistentFixedRateSampler(samplingRate) {
+      @Override
+      protected int getGeometricRandomValueFromParentOrGenerate(SamplingState parentSamplingState) {
+        return geometricRandomValue;
+      }
+    };
+  }
+
+  // returns the number of bytes allocated by sampling a span and updating the trace state of its
+  // parent numIterations times, after warming up with as many iterations
+  private static long getAllocatedBytesOfSampledPath(
+      Sampler sampler, Context parentContext, TraceState parentTraceState, int numIterations) {
+    long checksum = 0;
+
+    // warm up to get the JIT compiler involved
+    for (int i = 0; i < numIterations; ++i) {
+      SamplingResult result =
+          sampler.shouldSample(parentContext, TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+      checksum += result.getUpdatedTraceState(parentTraceState).size();
+    }
+
+    long allocatedBytesBefore = getAllocatedBytesOfCurrentThread();
+    for (int i = 0; i < numIterations; ++i) {
+      SamplingResult result =
+          sampler.shouldSample(parentContext, TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+      checksum += result.getUpdatedTraceState(parentTraceState).size();
+    }
+    long allocatedBytesAfter = getAllocatedBytesOfCurrentThread();
+
+    assertEquals(2L * 2 * numIterations, checksum);
+    return allocatedBytesAfter - allocatedBytesBefore;
+  }
+
+  @Test
+  public void testSampledPathDoesNotAllocate() {
+    Sampler sampler = createSampler(5, 0.25);
+    int numIterations = 1_000_000;
+
+    // root span
+    TraceState traceState =
+        sampler
+            .shouldSample(Context.root(), TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS)
+            .getUpdatedTraceState(TraceState.getDefault());
+    // allow some slack for unrelated allocations, a single allocation per call would already
+    // amount to more than 16 bytes per iteration
+    assertTrue(
+        getAllocatedBytesOfSampledPath(sampler, Context.root(), traceState, numIterations)
+            < numIterations);
+
+    // child span of a sampled parent whose sampling state is stored in the context, as done by
+    // SamplingStatePropagator for remote parents, without the stored sampling state the parent
+    // trace state would be parsed into a new SamplingState instance for every span
+    Context parentContext =
+        Context.root()
+            .with(
+                Span.wrap(
+                    SpanContext.create(
+                        TRACE_ID, "0123456789abcdef", TraceFlags.getSampled(), traceState)));
+    parentContext = parentContext.with(SamplingState.fromContext(parentContext));
+    assertTrue(
+        getAllocatedBytesOfSampledPath(sampler, parentContext, traceState, numIterations)
+            < numIterations);
+  }
+
+  @Test
+  public void testSampledResultsAreShared() {
+    Sampler sampler = createSampler(5, 0.25);
+    SamplingResult result1 =
+        sampler.shouldSample(Context.root(), TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+    SamplingResult result2 =
+        sampler.shouldSample(Context.root(), TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+    assertSame(result1, result2);
+    assertEquals(SamplingDecision.RECORD_AND_SAMPLE, result1.getDecision());
+
+    TraceState traceState = result1.getUpdatedTraceState(TraceState.getDefault());
+    assertEquals(
+        "5", traceState.get(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY));
+    assertEquals("2", traceState.get(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY));
+
+    // an unchanged trace state is passed through
+    assertSame(traceState, result1.getUpdatedTraceState(traceState));
+  }
+
+  @Test
+  public void testDroppedResultsOfChildSpans() {
+    Sampler sampler = createSampler(1, 0.25);
+    String parentSpanId = "0123456789abcdef";
+    TraceState parentTraceState = TraceState.getDefault();
+    Context parentContext =
+        Context.root()
+            .with(
+                Span.wrap(
+                    SpanContext.create(
+                        TRACE_ID, parentSpanId, TraceFlags.getDefault(), parentTraceState)));
+
+    SamplingResult result =
+        sampler.shouldSample(parentContext, TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+    assertEquals(SamplingDecision.DROP, result.getDecision());
+
+    TraceState traceState = result.getUpdatedTraceState(parentTraceState);
+    assertEquals(
+        "1", traceState.get(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY));
+    assertEquals("2", traceState.get(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY));
+    assertEquals("1", traceState.get(AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY));
+    assertEquals(
+        parentSpanId, traceState.get(AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY));
+  }
+
+  @Test
+  public void testMalformedVerboseParentAndCompactChild() {
+    Sampler sampler =
+        new ConsistentFixedRateSampler(0.25) {
+          @Override
+          protected int getGeometricRandomValueFromParentOrGenerate(
+              SamplingState parentSamplingState) {
+            return 1;
+          }
+
+          @Override
+          protected TraceStateEncoding getTraceStateEncoding() {
+            return TraceStateEncoding.COMPACT;
+          }
+        };
+    String parentSpanId = "0123456789abcdef";
+
+    for (String sampledAncestorSpanId :
+        new String[] {"abc", "fedcba9876543210fedc", "FEDCBA9876543210", "fedcba987654321x"}) {
+      TraceState parentTraceState =
+          TraceState.builder()
+              .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "2")
+              .put(AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY, "3")
+              .put(AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY, sampledAncestorSpanId)
+              .build();
+      Context parentContext =
+          Context.root()
+              .with(
+                  Span.wrap(
+                      SpanContext.create(
+                          TRACE_ID, parentSpanId, TraceFlags.getDefault(), parentTraceState)));
+
+      SamplingResult result =
+          sampler.shouldSample(parentContext, TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+      assertEquals(SamplingDecision.DROP, result.getDecision());
+
+      // the malformed sampled ancestor span ID is treated as missing and replaced by the parent
+      TraceState traceState = result.getUpdatedTraceState(parentTraceState);
+      assertEquals(
+          "0102-4." + parentSpanId,
+          traceState.get(AbstractConsistentSampler.COMPACT_SAMPLING_STATE_KEY));
+      assertNull(traceState.get(AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY));
+    }
+  }
+
+  private static int getGeneratedGeometricRandomValue(Sampler sampler) {
+    return Integer.parseInt(
+        sampler
+            .shouldSample(Context.root(), TRACE_ID, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS)
+            .getUpdatedTraceState(TraceState.getDefault())
+            .get(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY));
+  }
+
+  private static Sampler createSampler(RandomGenerationMode mode, SplittableRandom random) {
+    return new ConsistentFixedRateSampler(1.) {
+      @Override
+      protected RandomGenerationMode getRandomGenerationMode() {
+        return mode;
+      }
+
+      @Override
+      protected boolean generateRandomBit() {
+        return random.nextBoolean();
+      }
+
+      @Override
+      protected long generateRandomLong() {
+        return random.nextLong();
+      }
+    };
+  }
+
+  @Test
+  public void testGeometricRandomValueFromRandomLong() {
+    long[] randomLongs = {-1L, 1L << 60, 1L, 0L};
+    int[] expectedGeometricRandomValues = {0, 3, 62, 62};
+
+    for (int i = 0; i < randomLongs.length; ++i) {
+      long randomLong = randomLongs[i];
+      Sampler sampler =
+          new ConsistentFixedRateSampler(1.) {
+            @Override
+            protected RandomGenerationMode getRandomGenerationMode() {
+              return RandomGenerationMode.RANDOM_LONG;
+            }
+
+            @Override
+            protected boolean generateRandomBit() {
+              throw new AssertionError();
+            }
+
+            @Override
+            protected long generateRandomLong() {
+              return randomLong;
+            }
+          };
+      assertEquals(expectedGeometricRandomValues[i], getGeneratedGeometricRandomValue(sampler));
+    }
+  }
+
+  @Test
+  public void testGeometricRandomValueDistribution() {
+    double alpha = 0.01;
+    int numCycles = 100000;
+    int numBins = 8;
+
+    double[] expectedFrequencies = new double[numBins];
+    for (int i = 0; i < numBins - 1; ++i) {
+      expectedFrequencies[i] = Math.pow(0.5, i + 1);
+    }
+    expectedFrequencies[numBins - 1] = Math.pow(0.5, numBins - 1);
+
+    SplittableRandom random = new SplittableRandom(0x5a6e2f4b1d7c3e91L);
+    for (RandomGenerationMode mode :
+        new RandomGenerationMode[] {
+          RandomGenerationMode.RANDOM_BITS, RandomGenerationMode.RANDOM_LONG
+        }) {
+      Sampler sampler = createSampler(mode, random);
+      long[] histogram = new long[numBins];
+      for (int i = 0; i < numCycles; ++i) {
+        histogram[Math.min(getGeneratedGeometricRandomValue(sampler), numBins - 1)] += 1;
+      }
+      assertFalse(new GTest().gTest(expectedFrequencies, histogram, alpha));
+    }
+  }
+
+  @Test
+  public void testGeometricRandomValueFromTraceId() {
+    assertEquals(
+        0,
+        AbstractConsistentSampler.getGeometricRandomValueFromTraceId(
+            "0123456789abcdef0123456789abcdef"));
+    assertEquals(
+        4,
+        AbstractConsistentSampler.getGeometricRandomValueFromTraceId(
+            "ffffffffffffffff0000000000000010"));
+    assertEquals(
+        62,
+        AbstractConsistentSampler.getGeometricRandomValueFromTraceId(
+            "ffffffffffffffff0000000000000000"));
+  }
+
+  @Test
+  public void testTraceIdRandomGenerationModeIgnoresTraceState() {
+    Sampler sampler =
+        new ConsistentFixedRateSampler(0.125) {
+          @Override
+          protected RandomGenerationMode getRandomGenerationMode() {
+            return RandomGenerationMode.TRACE_ID;
+          }
+        };
+
+    // a propagated geometric random value must neither be used nor kept
+    TraceState parentTraceState =
+        TraceState.builder()
+            .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "0")
+            .build();
+    Context parentContext =
+        Context.root()
+            .with(
+                Span.wrap(
+                    SpanContext.create(
+                        TRACE_ID, "0123456789abcdef", TraceFlags.getDefault(), parentTraceState)));
+
+    String sampledTraceId = "0123456789abcdef0123456789abcd80";
+    SamplingResult sampledResult =
+        sampler.shouldSample(
+            parentContext, sampledTraceId, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+    assertEquals(SamplingDecision.RECORD_AND_SAMPLE, sampledResult.getDecision());
+    TraceState sampledTraceState = sampledResult.getUpdatedTraceState(parentTraceState);
+    assertNull(
+        sampledTraceState.get(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY));
+    assertEquals("3", sampledTraceState.get(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY));
+
+    String droppedTraceId = "0123456789abcdef0123456789abcd84";
+    SamplingResult droppedResult =
+        sampler.shouldSample(
+            parentContext, droppedTraceId, NAME, SPAN_KIND, ATTRIBUTES, PARENT_LINKS);
+    assertEquals(SamplingDecision.DROP, droppedResult.getDecision());
+    TraceState droppedTraceState = droppedResult.getUpdatedTraceState(parentTraceState);
+    assertNull(
+        droppedTraceState.get(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY));
+    assertEquals("3", droppedTraceState.get(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CompactSamplingStateFormatTest {
+
+  @Test
+  public void testFormat() {
+    assertEquals("0300", CompactSamplingStateFormat.format(3, 0, 0, null));
+    assertEquals("3e3f", CompactSamplingStateFormat.format(62, 63, 0, null));
+    assertEquals("--05", CompactSamplingStateFormat.format(-1, 5, 0, null));
+    assertEquals("0102-1", CompactSamplingStateFormat.format(1, 2, 1, null));
+    assertEquals("0102-1f", CompactSamplingStateFormat.format(1, 2, 31, null));
+    assertEquals(
+        "0102.0123456789abcdef", CompactSamplingStateFormat.format(1, 2, 0, "0123456789abcdef"));
+    assertEquals(
+        "0102-100.0123456789abcdef",
+        CompactSamplingStateFormat.format(1, 2, 256, "0123456789abcdef"));
+    assertEquals("0102-ffffffffffffffff", CompactSamplingStateFormat.format(1, 2, -1L, null));
+  }
+
+  @Test
+  public void testRoundTrip() {
+    String[] ancestorSpanIds = {null, "0123456789abcdef"};
+    long[] numbersDroppedAncestors = {0, 1, 15, 16, 12345, Long.MAX_VALUE};
+    for (int r = -1; r <= 62; ++r) {
+      for (int p = 0; p <= 63; ++p) {
+        for (long n : numbersDroppedAncestors) {
+          for (String a : ancestorSpanIds) {
+            String value = CompactSamplingStateFormat.format(r, p, n, a);
+            assertEquals(r, CompactSamplingStateFormat.parseGeometricRandomValue(value));
+            assertEquals(p, CompactSamplingStateFormat.parseSamplingRateExponent(value));
+            assertEquals(n, CompactSamplingStateFormat.parseNumberDroppedAncestors(value));
+            assertEquals(a, CompactSamplingStateFormat.parseSampledAncestorSpanId(value));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testParseInvalid() {
+    String[] values = {"", "0", "030", "xx05", "3f40", "0102-", "0102-xy", "0102.0123", "0102+1"};
+    for (String value : values) {
+      assertEquals(0L, CompactSamplingStateFormat.parseNumberDroppedAncestors(value));
+      assertNull(CompactSamplingStateFormat.parseSampledAncestorSpanId(value));
+    }
+    assertEquals(-1, CompactSamplingStateFormat.parseGeometricRandomValue("030"));
+    assertEquals(-1, CompactSamplingStateFormat.parseSamplingRateExponent("030"));
+    assertEquals(-1, CompactSamplingStateFormat.parseGeometricRandomValue("xx05"));
+    assertEquals(5, CompactSamplingStateFormat.parseSamplingRateExponent("xx05"));
+    assertEquals(-1, CompactSamplingStateFormat.parseGeometricRandomValue("3f40"));
+    assertEquals(-1, CompactSamplingStateFormat.parseSamplingRateExponent("3f40"));
+  }
+}
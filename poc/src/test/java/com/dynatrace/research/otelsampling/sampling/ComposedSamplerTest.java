@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ComposedSamplerTest {
+
+  private static final class FixedExponentSampler extends AbstractConsistentSampler {
+    private final int samplingRateExponent;
+    private final boolean hasSideEffects;
+    private int numberOfCalls = 0;
+
+    private FixedExponentSampler(int samplingRateExponent) {
+      this(samplingRateExponent, false);
+    }
+
+    private FixedExponentSampler(int samplingRateExponent, boolean hasSideEffects) {
+      this.samplingRateExponent = samplingRateExponent;
+      this.hasSideEffects = hasSideEffects;
+    }
+
+    @Override
+    protected boolean hasSideEffects() {
+      return hasSideEffects;
+    }
+
+    @Override
+    protected int getSamplingRateExponent(
+        Context parentContext,
+        String traceId,
+        String name,
+        SpanKind spanKind,
+        Attributes attributes,
+        List<LinkData> parentLinks) {
+      numberOfCalls += 1;
+      return samplingRateExponent;
+    }
+
+    @Override
+    public String getDescription() {
+      return Integer.toString(samplingRateExponent);
+    }
+  }
+
+  private static int getSamplingRateExponent(AbstractConsistentSampler sampler) {
+    return sampler.getSamplingRateExponent(
+        Context.root(),
+        "0123456789abcdef0123456789abcdef",
+        "name",
+        SpanKind.SERVER,
+        Attributes.empty(),
+        Collections.emptyList());
+  }
+
+  @Test
+  public void testOr() {
+    assertEquals(
+        2,
+        getSamplingRateExponent(
+            ComposedSampler.or(
+                new FixedExponentSampler(5),
+                new FixedExponentSampler(2),
+                new FixedExponentSampler(7))));
+    assertEquals(
+        3,
+        getSamplingRateExponent(
+            new ComposedSampler(new FixedExponentSampler(3), new FixedExponentSampler(63))));
+  }
+
+  @Test
+  public void testAnd() {
+    assertEquals(
+        7,
+        getSamplingRateExponent(
+            ComposedSampler.and(
+                new FixedExponentSampler(5),
+                new FixedExponentSampler(2),
+                new FixedExponentSampler(7))));
+  }
+
+  @Test
+  public void testShortCircuit() {
+    FixedExponentSampler sampler1 = new FixedExponentSampler(4);
+    FixedExponentSampler sampler2 = new FixedExponentSampler(0);
+    FixedExponentSampler sampler3 = new FixedExponentSampler(1);
+    assertEquals(0, getSamplingRateExponent(ComposedSampler.or(sampler1, sampler2, sampler3)));
+    assertEquals(1, sampler1.numberOfCalls);
+    assertEquals(1, sampler2.numberOfCalls);
+    assertEquals(0, sampler3.numberOfCalls);
+
+    FixedExponentSampler sampler4 = new FixedExponentSampler(63);
+    assertEquals(63, getSamplingRateExponent(ComposedSampler.and(sampler1, sampler4, sampler3)));
+    assertEquals(2, sampler1.numberOfCalls);
+    assertEquals(1, sampler4.numberOfCalls);
+    assertEquals(0, sampler3.numberOfCalls);
+  }
+
+  @Test
+  public void testSamplersWithSideEffectsAreAlwaysEvaluated() {
+    FixedExponentSampler sampler1 = new FixedExponentSampler(0);
+    FixedExponentSampler sampler2 = new FixedExponentSampler(1);
+    FixedExponentSampler sampler3 = new FixedExponentSampler(2, true);
+    FixedExponentSampler sampler4 = new FixedExponentSampler(3);
+    ComposedSampler or = ComposedSampler.or(sampler1, sampler2, sampler3, sampler4);
+    assertTrue(or.hasSideEffects());
+    assertEquals(0, getSamplingRateExponent(or));
+    assertEquals(1, sampler1.numberOfCalls);
+    assertEquals(0, sampler2.numberOfCalls);
+    assertEquals(1, sampler3.numberOfCalls);
+    assertEquals(0, sampler4.numberOfCalls);
+
+    FixedExponentSampler sampler5 = new FixedExponentSampler(63);
+    ComposedSampler and = ComposedSampler.and(sampler5, sampler2, sampler3, sampler4);
+    assertEquals(63, getSamplingRateExponent(and));
+    assertEquals(1, sampler5.numberOfCalls);
+    assertEquals(0, sampler2.numberOfCalls);
+    assertEquals(2, sampler3.numberOfCalls);
+    assertEquals(0, sampler4.numberOfCalls);
+
+    // nested composed samplers with side effects are evaluated as well
+    ComposedSampler nested = ComposedSampler.and(sampler5, ComposedSampler.or(sampler4, sampler3));
+    assertTrue(nested.hasSideEffects());
+    assertEquals(63, getSamplingRateExponent(nested));
+    assertEquals(3, sampler3.numberOfCalls);
+
+    assertFalse(ComposedSampler.or(sampler1, sampler2).hasSideEffects());
+  }
+
+  @Test
+  public void testRateLimitingSamplerCountsAllSpans() {
+    long[] nanoTime = {0L};
+    ConsistentRateLimitingSampler rateLimitingSampler =
+        new ConsistentRateLimitingSampler(100., TimeUnit.SECONDS.toNanos(1), () -> nanoTime[0]);
+    ComposedSampler sampler =
+        ComposedSampler.or(new ConsistentFixedRateSampler(1.), rateLimitingSampler);
+
+    // the always-on sampler determines the result, but the rate-limiting sampler has side effects
+    // and still has to see all 1000 spans of the first second to reduce its sampling rate
+    for (int i = 0; i < 1000; ++i) {
+      assertEquals(0, getSamplingRateExponent(sampler));
+    }
+    nanoTime[0] += TimeUnit.SECONDS.toNanos(1);
+    assertEquals(0, getSamplingRateExponent(sampler));
+    assertEquals(0.1, rateLimitingSampler.getCurrentSamplingRate(), 1e-9);
+  }
+
+  @Test
+  public void testFlattening() {
+    AbstractConsistentSampler s1 = new FixedExponentSampler(1);
+    AbstractConsistentSampler s2 = new FixedExponentSampler(2);
+    AbstractConsistentSampler s3 = new FixedExponentSampler(3);
+    AbstractConsistentSampler s4 = new FixedExponentSampler(4);
+
+    ComposedSampler nested =
+        ComposedSampler.or(new ComposedSampler(s1, s2), ComposedSampler.or(s3), s4);
+    assertEquals("ComposedSampler{operation=OR, samplers=[1, 2, 3, 4]}", nested.getDescription());
+
+    ComposedSampler mixed = ComposedSampler.and(ComposedSampler.or(s1, s2), s3);
+    assertEquals(
+        "ComposedSampler{operation=AND, samplers=[ComposedSampler{operation=OR, samplers=[1, 2]},"
+            + " 3]}",
+        mixed.getDescription());
+    assertEquals(3, getSamplingRateExponent(mixed));
+
+    // subclasses are not flattened
+    ComposedSampler subclass =
+        new ComposedSampler(ComposedSampler.Operation.OR, Arrays.asList(s1, s2)) {};
+    assertEquals(
+        "ComposedSampler{operation=OR, samplers=[ComposedSampler{operation=OR, samplers=[1, 2]},"
+            + " 3]}",
+        ComposedSampler.or(subclass, s3).getDescription());
+  }
+}
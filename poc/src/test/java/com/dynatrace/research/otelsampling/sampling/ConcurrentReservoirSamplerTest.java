@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class ConcurrentReservoirSamplerTest {
+
+  private static int greatestSampleRateIndexGreaterThanRandomValueOfData(long l) {
+    return Long.numberOfLeadingZeros(l);
+  }
+
+  private static double sampleRateIndexToSampleRate(int i) {
+    return 1. / (1L << i);
+  }
+
+  @Test
+  public void testConcurrentAdd() throws Exception {
+    int capacity = 50;
+    int numThreads = 4;
+    int numItemsPerThread = 10000;
+
+    ConcurrentReservoirSampler<Long> sampler =
+        new ConcurrentReservoirSampler<>(
+            capacity,
+            numThreads,
+            ConcurrentReservoirSamplerTest::greatestSampleRateIndexGreaterThanRandomValueOfData,
+            ConcurrentReservoirSamplerTest::sampleRateIndexToSampleRate,
+            new SplittableRandom(0x5d2b9e4c7a1f3068L));
+
+    Set<Long> allItems = ConcurrentHashMap.newKeySet();
+    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; ++t) {
+        SplittableRandom random = new SplittableRandom(t);
+        futures.add(
+            executorService.submit(
+                () -> {
+                  for (int i = 0; i < numItemsPerThread; ++i) {
+                    long item = random.nextLong();
+                    allItems.add(item);
+                    sampler.add(item);
+                    if (i % 1000 == 0) {
+                      // taking samples concurrently must not disturb adding items
+                      sampler.getSamples();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+
+    Collection<ReservoirSampler.Sample<Long>> samples = sampler.getSamples();
+    assertEquals(capacity, samples.size());
+
+    int maxSampleRateIndex =
+        samples.stream().mapToInt(ReservoirSampler.Sample::getSampleRateIndex).max().getAsInt();
+    Set<Long> sampledItems = new HashSet<>();
+    for (ReservoirSampler.Sample<Long> sample : samples) {
+      assertTrue(allItems.contains(sample.getItem()));
+      assertTrue(
+          greatestSampleRateIndexGreaterThanRandomValueOfData(sample.getItem())
+              >= sample.getSampleRateIndex());
+      assertTrue(sampledItems.add(sample.getItem()));
+    }
+    for (long item : allItems) {
+      if (greatestSampleRateIndexGreaterThanRandomValueOfData(item) > maxSampleRateIndex) {
+        assertTrue(sampledItems.contains(item));
+      }
+    }
+  }
+
+  @Test
+  public void testGetSamplesAndResetDoesNotLoseItems() throws Exception {
+    int numThreads = 4;
+    int numItemsPerThread = 10000;
+    // the capacity is large enough to keep all items
+    int capacity = numThreads * numItemsPerThread;
+
+    ConcurrentReservoirSampler<Long> sampler =
+        new ConcurrentReservoirSampler<>(
+            capacity,
+            numThreads,
+            ConcurrentReservoirSamplerTest::greatestSampleRateIndexGreaterThanRandomValueOfData,
+            ConcurrentReservoirSamplerTest::sampleRateIndexToSampleRate,
+            new SplittableRandom(0x3c81f0a7d25e9b46L));
+
+    List<Long> sampledItems = new ArrayList<>();
+    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; ++t) {
+        long offset = (long) t * numItemsPerThread;
+        futures.add(
+            executorService.submit(
+                () -> {
+                  for (long i = 0; i < numItemsPerThread; ++i) {
+                    sampler.add(offset + i);
+                  }
+                }));
+      }
+      // windows are closed while items are added
+      while (!futures.stream().allMatch(Future::isDone)) {
+        sampler.getSamplesAndReset().forEach(sample -> sampledItems.add(sample.getItem()));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+    sampler.getSamplesAndReset().forEach(sample -> sampledItems.add(sample.getItem()));
+
+    // every item is part of exactly one window
+    assertEquals(numThreads * numItemsPerThread, sampledItems.size());
+    assertEquals(numThreads * numItemsPerThread, new HashSet<>(sampledItems).size());
+    assertTrue(sampler.getSamples().isEmpty());
+  }
+}
@@ -42,6 +42,7 @@ import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
 import io.opentelemetry.sdk.trace.samplers.SamplingResult;
 import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 import org.hipparchus.stat.inference.AlternativeHypothesis;
 import org.hipparchus.stat.inference.BinomialTest;
 import org.junit.Before;
@@ -104,6 +105,55 @@ public class ConsistentFixedRateSamplerTest {
     }
   }
 
+  @Test
+  public void testNonPowerOfTwoRatios() {
+
+    int numCycles = 100000;
+    double alpha = 0.01;
+    double[] ratios = {0.9, 0.7, 0.3, 0.1, 0.01, 1e-4};
+
+    SplittableRandom random = new SplittableRandom(0x5b7a3d3fd1c6a1e2L);
+
+    for (double ratio : ratios) {
+      Sampler sampler =
+          new ConsistentFixedRateSampler(ratio) {
+            @Override
+            protected boolean generateRandomBit() {
+              return random.nextBoolean();
+            }
+
+            @Override
+            protected long generateRandomLong() {
+              return random.nextLong();
+            }
+          };
+      int recordCounter = 0;
+      for (long i = 0; i < numCycles; ++i) {
+        SamplingResult samplingResult =
+            sampler.shouldSample(parentContext, traceId, name, spanKind, attributes, parentLinks);
+        if (samplingResult.getDecision() == SamplingDecision.RECORD_AND_SAMPLE) {
+          recordCounter += 1;
+        }
+      }
+      assertFalse(
+          new BinomialTest()
+              .binomialTest(
+                  numCycles, recordCounter, ratio, AlternativeHypothesis.TWO_SIDED, alpha));
+    }
+  }
+
+  @Test
+  public void testToUnsignedThreshold() {
+    assertEquals(0L, ConsistentFixedRateSampler.toUnsignedThreshold(0.));
+    assertEquals(Long.MIN_VALUE, ConsistentFixedRateSampler.toUnsignedThreshold(0.5));
+    assertEquals(1L << 62, ConsistentFixedRateSampler.toUnsignedThreshold(0.25));
+    assertEquals(0xC000000000000000L, ConsistentFixedRateSampler.toUnsignedThreshold(0.75));
+    assertEquals(1L, ConsistentFixedRateSampler.toUnsignedThreshold(0x1p-64));
+    assertEquals(0L, ConsistentFixedRateSampler.toUnsignedThreshold(0x1p-65));
+    assertEquals(
+        0xFFFFFFFFFFFFF800L, ConsistentFixedRateSampler.toUnsignedThreshold(Math.nextDown(1.)));
+  }
+
   @Test
   public void testParentSampledAndChildSampledAncestorLinkAndDistance() {
 
@@ -172,6 +222,8 @@ public class ConsistentFixedRateSamplerTest {
                             SpanContext.create(
                                 traceId, parentSpanId, TraceFlags.getDefault(), parentTraceState));
                 return result;
+              } else if ("consistent-sampling-state".equals(key.toString())) {
+                return null;
               } else {
                 fail();
                 return null;
@@ -273,6 +325,8 @@ public class ConsistentFixedRateSamplerTest {
                             SpanContext.create(
                                 traceId, parentSpanId, TraceFlags.getDefault(), parentTraceState));
                 return result;
+              } else if ("consistent-sampling-state".equals(key.toString())) {
+                return null;
               } else {
                 fail();
                 return null;
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import java.util.Collections;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.hipparchus.stat.inference.AlternativeHypothesis;
+import org.hipparchus.stat.inference.BinomialTest;
+import org.junit.Test;
+
+public class ConsistentRateLimitingSamplerTest {
+
+  private static final long BUCKET_DURATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static ConsistentRateLimitingSampler createSampler(
+      double targetSpansPerSecond, long[] nanoTime, SplittableRandom random) {
+    return new ConsistentRateLimitingSampler(
+        targetSpansPerSecond, BUCKET_DURATION_NANOS, () -> nanoTime[0]) {
+      @Override
+      protected boolean generateRandomBit() {
+        return random.nextBoolean();
+      }
+
+      @Override
+      protected long generateRandomLong() {
+        return random.nextLong();
+      }
+    };
+  }
+
+  private static boolean sample(ConsistentRateLimitingSampler sampler) {
+    return sampler
+            .shouldSample(
+                Context.root(),
+                "0123456789abcdef0123456789abcdef",
+                "name",
+                SpanKind.SERVER,
+                Attributes.empty(),
+                Collections.emptyList())
+            .getDecision()
+        == SamplingDecision.RECORD_AND_SAMPLE;
+  }
+
+  @Test
+  public void testConstantArrivalRate() {
+
+    double targetSpansPerSecond = 100;
+    int spansPerSecond = 10000;
+    int numWarmUpBuckets = 5;
+    int numBuckets = 20;
+    double alpha = 0.01;
+
+    long[] nanoTime = {0};
+    SplittableRandom random = new SplittableRandom(0x3f8a7c0d2e1b4a96L);
+    ConsistentRateLimitingSampler sampler = createSampler(targetSpansPerSecond, nanoTime, random);
+
+    long nanosBetweenSpans = BUCKET_DURATION_NANOS / spansPerSecond;
+    int sampledCounter = 0;
+    for (int bucketIdx = 0; bucketIdx < numWarmUpBuckets + numBuckets; ++bucketIdx) {
+      for (int i = 0; i < spansPerSecond; ++i) {
+        boolean sampled = sample(sampler);
+        if (bucketIdx >= numWarmUpBuckets && sampled) {
+          sampledCounter += 1;
+        }
+        nanoTime[0] += nanosBetweenSpans;
+      }
+    }
+
+    assertEquals(targetSpansPerSecond / spansPerSecond, sampler.getCurrentSamplingRate(), 1e-9);
+    assertFalse(
+        new BinomialTest()
+            .binomialTest(
+                numBuckets * spansPerSecond,
+                sampledCounter,
+                targetSpansPerSecond / spansPerSecond,
+                AlternativeHypothesis.TWO_SIDED,
+                alpha));
+  }
+
+  @Test
+  public void testArrivalRateBelowTarget() {
+    long[] nanoTime = {0};
+    ConsistentRateLimitingSampler sampler =
+        createSampler(1000, nanoTime, new SplittableRandom(0x6c1d0e5b9a2f4378L));
+    for (int i = 0; i < 500; ++i) {
+      nanoTime[0] += BUCKET_DURATION_NANOS / 100;
+      assertEquals(true, sample(sampler));
+    }
+    assertEquals(1., sampler.getCurrentSamplingRate(), 0.);
+  }
+
+  @Test
+  public void testAdaptationAfterSpike() {
+    long[] nanoTime = {0};
+    ConsistentRateLimitingSampler sampler =
+        createSampler(10, nanoTime, new SplittableRandom(0x0b5e2c7d9f3a1864L));
+
+    // spike of 1000 spans within the first bucket
+    for (int i = 0; i < 1000; ++i) {
+      sample(sampler);
+    }
+    nanoTime[0] += BUCKET_DURATION_NANOS;
+    sample(sampler);
+    assertEquals(10. / 1000., sampler.getCurrentSamplingRate(), 1e-9);
+
+    // back to a low arrival rate, the exponential moving average halves the excess per bucket
+    for (int bucketIdx = 0; bucketIdx < 20; ++bucketIdx) {
+      nanoTime[0] += BUCKET_DURATION_NANOS;
+      sample(sampler);
+    }
+    assertEquals(1., sampler.getCurrentSamplingRate(), 0.);
+  }
+
+  @Test
+  public void testDescription() {
+    assertEquals(
+        "ConsistentRateLimitingSampler{targetSpansPerSecond=5.0, bucketDurationNanos=1000000000}",
+        new ConsistentRateLimitingSampler(5).getDescription());
+  }
+}
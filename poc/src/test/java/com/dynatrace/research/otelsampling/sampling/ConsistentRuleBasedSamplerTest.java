@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+
+import com.dynatrace.research.otelsampling.sampling.ConsistentRuleBasedSampler.Rule;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Predicate;
+import org.junit.Test;
+
+public class ConsistentRuleBasedSamplerTest {
+
+  private static final AttributeKey<String> HTTP_METHOD = AttributeKey.stringKey("http.method");
+  private static final AttributeKey<Long> HTTP_STATUS = AttributeKey.longKey("http.status_code");
+
+  private static int getSamplingRateExponent(
+      ConsistentRuleBasedSampler sampler, String name, SpanKind spanKind, Attributes attributes) {
+    return sampler.getSamplingRateExponent(
+        Context.root(),
+        "0123456789abcdef0123456789abcdef",
+        name,
+        spanKind,
+        attributes,
+        Collections.emptyList());
+  }
+
+  @Test
+  public void testFirstMatchingRuleWins() {
+    ConsistentRuleBasedSampler sampler =
+        new ConsistentRuleBasedSampler(
+            Arrays.asList(
+                Rule.builder(1.).spanNameEquals("/health").build(),
+                Rule.builder(0.5).spanNameStartsWith("/api/").spanKind(SpanKind.SERVER).build(),
+                Rule.builder(0.25)
+                    .spanNameStartsWith("/api/orders")
+                    .attributeEquals(HTTP_METHOD, "POST")
+                    .build(),
+                Rule.builder(0.125).attributeEquals(HTTP_STATUS, 500L).build(),
+                Rule.builder(0.).spanNameStartsWith("").spanKind(SpanKind.CLIENT).build()),
+            0.0625);
+
+    Attributes post = Attributes.of(HTTP_METHOD, "POST");
+    Attributes error = Attributes.of(HTTP_STATUS, 500L);
+
+    assertEquals(0, getSamplingRateExponent(sampler, "/health", SpanKind.CLIENT, error));
+    assertEquals(1, getSamplingRateExponent(sampler, "/api/orders", SpanKind.SERVER, post));
+    assertEquals(2, getSamplingRateExponent(sampler, "/api/orders/1", SpanKind.INTERNAL, post));
+    assertEquals(3, getSamplingRateExponent(sampler, "/api/orders/1", SpanKind.INTERNAL, error));
+    assertEquals(2, getSamplingRateExponent(sampler, "/api/orders", SpanKind.CLIENT, post));
+    assertEquals(
+        63, getSamplingRateExponent(sampler, "/api/orders", SpanKind.CLIENT, Attributes.empty()));
+    assertEquals(4, getSamplingRateExponent(sampler, "/api", SpanKind.SERVER, post));
+    assertEquals(4, getSamplingRateExponent(sampler, "", SpanKind.PRODUCER, Attributes.empty()));
+  }
+
+  private static final class ReferenceRule {
+    private final Predicate<String> namePredicate;
+    private final SpanKind spanKind;
+    private final String method;
+
+    private ReferenceRule(Predicate<String> namePredicate, SpanKind spanKind, String method) {
+      this.namePredicate = namePredicate;
+      this.spanKind = spanKind;
+      this.method = method;
+    }
+
+    private boolean matches(String name, SpanKind kind, Attributes attributes) {
+      return namePredicate.test(name)
+          && (spanKind == null || spanKind == kind)
+          && (method == null || method.equals(attributes.get(HTTP_METHOD)));
+    }
+  }
+
+  @Test
+  public void testAgainstLinearEvaluation() {
+    SplittableRandom random = new SplittableRandom(0x2d4f6a8c0e1b3d5fL);
+    String[] segments = {"a", "b", "ab", "ba", "/", "x"};
+    String[] methods = {"GET", "POST"};
+    SpanKind[] spanKinds = SpanKind.values();
+
+    List<Rule> rules = new ArrayList<>();
+    List<ReferenceRule> referenceRules = new ArrayList<>();
+    for (int i = 0; i < 2000; ++i) {
+      StringBuilder sb = new StringBuilder();
+      int numSegments = random.nextInt(5);
+      for (int j = 0; j < numSegments; ++j) {
+        sb.append(segments[random.nextInt(segments.length)]);
+      }
+      String pattern = sb.toString();
+      Rule.Builder builder = Rule.builder(1.);
+      Predicate<String> namePredicate;
+      switch (random.nextInt(3)) {
+        case 0:
+          builder.spanNameEquals(pattern);
+          namePredicate = pattern::equals;
+          break;
+        case 1:
+          builder.spanNameStartsWith(pattern);
+          namePredicate = s -> s.startsWith(pattern);
+          break;
+        default:
+          namePredicate = s -> true;
+      }
+      SpanKind spanKind = null;
+      if (random.nextBoolean()) {
+        spanKind = spanKinds[random.nextInt(spanKinds.length)];
+        builder.spanKind(spanKind);
+      }
+      String method = null;
+      if (random.nextInt(4) != 0) {
+        method = methods[random.nextInt(methods.length)];
+        builder.attributeEquals(HTTP_METHOD, method);
+      }
+      rules.add(builder.build());
+      referenceRules.add(new ReferenceRule(namePredicate, spanKind, method));
+    }
+
+    ConsistentRuleBasedSampler sampler = new ConsistentRuleBasedSampler(rules, 0.);
+
+    for (int i = 0; i < 10000; ++i) {
+      StringBuilder sb = new StringBuilder();
+      int numSegments = random.nextInt(7);
+      for (int j = 0; j < numSegments; ++j) {
+        sb.append(segments[random.nextInt(segments.length)]);
+      }
+      String name = sb.toString();
+      SpanKind spanKind = spanKinds[random.nextInt(spanKinds.length)];
+      Attributes attributes =
+          random.nextBoolean()
+              ? Attributes.of(HTTP_METHOD, methods[random.nextInt(methods.length)])
+              : Attributes.empty();
+
+      int expectedRuleIndex = 0;
+      while (expectedRuleIndex < referenceRules.size()
+          && !referenceRules.get(expectedRuleIndex).matches(name, spanKind, attributes)) {
+        expectedRuleIndex += 1;
+      }
+      assertEquals(expectedRuleIndex, sampler.findRuleIndex(name, spanKind, attributes));
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Iterator;
+import java.util.SplittableRandom;
+import org.junit.Test;
+
+public class LongReservoirSamplerTest {
+
+  private static int greatestSampleRateIndexGreaterThanRandomValueOfData(long l) {
+    return Long.numberOfLeadingZeros(l);
+  }
+
+  @Test
+  public void testEquivalenceToReservoirSampler() {
+    SplittableRandom randomGenerator = new SplittableRandom(0x3f1c8a5e2b7d9046L);
+    for (int capacity : new int[] {1, 2, 5, 20, 100}) {
+      long seed = randomGenerator.nextLong();
+      LongReservoirSampler longSampler =
+          new LongReservoirSampler(capacity, new SplittableRandom(seed));
+      ReservoirSampler<Long> sampler =
+          new ReservoirSampler<>(
+              capacity,
+              LongReservoirSamplerTest::greatestSampleRateIndexGreaterThanRandomValueOfData,
+              i -> 1. / (1L << i),
+              new SplittableRandom(seed));
+      for (int i = 0; i < 10000; ++i) {
+        long id = randomGenerator.nextLong();
+        longSampler.add(id, greatestSampleRateIndexGreaterThanRandomValueOfData(id));
+        sampler.add(id);
+        longSampler.checkConsistency();
+
+        if (i % 97 == 0) {
+          assertEquals(sampler.getSamples().size(), longSampler.getNumberOfSamples());
+          Iterator<ReservoirSampler.Sample<Long>> iterator = sampler.getSamples().iterator();
+          LongReservoirSampler.Cursor cursor = longSampler.getSamples();
+          while (cursor.next()) {
+            ReservoirSampler.Sample<Long> sample = iterator.next();
+            assertEquals(sample.getItem().longValue(), cursor.getId());
+            assertEquals(sample.getSampleRateIndex(), cursor.getSampleRateIndex());
+          }
+          assertFalse(iterator.hasNext());
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSampleRateIndex() {
+    new LongReservoirSampler(10, new SplittableRandom(0)).add(0L, 128);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static com.dynatrace.research.otelsampling.sampling.NumberParser.INVALID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NumberParserTest {
+
+  @Test
+  public void testParseDecimal() {
+    assertEquals(0, NumberParser.parseDecimal("0", 63));
+    assertEquals(7, NumberParser.parseDecimal("007", 63));
+    assertEquals(63, NumberParser.parseDecimal("63", 63));
+    assertEquals(INVALID, NumberParser.parseDecimal("64", 63));
+    assertEquals(INVALID, NumberParser.parseDecimal("5", 0));
+    assertEquals(INVALID, NumberParser.parseDecimal("", 63));
+    assertEquals(INVALID, NumberParser.parseDecimal("-1", 63));
+    assertEquals(INVALID, NumberParser.parseDecimal("+1", 63));
+    assertEquals(INVALID, NumberParser.parseDecimal("1a", 63));
+    assertEquals(INVALID, NumberParser.parseDecimal(" 1", 63));
+    assertEquals(
+        Long.MAX_VALUE, NumberParser.parseDecimal(Long.toString(Long.MAX_VALUE), Long.MAX_VALUE));
+    assertEquals(INVALID, NumberParser.parseDecimal("9223372036854775808", Long.MAX_VALUE));
+    assertEquals(INVALID, NumberParser.parseDecimal("99999999999999999999999", Long.MAX_VALUE));
+    assertEquals(12, NumberParser.parseDecimal(new StringBuilder("x12y"), 1, 3, 63));
+    assertEquals(INVALID, NumberParser.parseDecimal("12", 1, 3, 63));
+  }
+
+  @Test
+  public void testParseHex() {
+    assertEquals(0x3e, NumberParser.parseHex("3e", 0, 2, 62));
+    assertEquals(INVALID, NumberParser.parseHex("3f", 0, 2, 62));
+    assertEquals(INVALID, NumberParser.parseHex("3E", 0, 2, 63));
+    assertEquals(INVALID, NumberParser.parseHex("--", 0, 2, 63));
+    assertEquals(INVALID, NumberParser.parseHex("", 0, 0, 63));
+    assertEquals(INVALID, NumberParser.parseHex("a", 0, 1, 5));
+    assertEquals(Long.MAX_VALUE, NumberParser.parseHex("7fffffffffffffff", 0, 16, Long.MAX_VALUE));
+    assertEquals(INVALID, NumberParser.parseHex("8000000000000000", 0, 16, Long.MAX_VALUE));
+    assertEquals(INVALID, NumberParser.parseHex("10000000000000000", 0, 17, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testParseSpanId() {
+    assertEquals(0x00f067aa0ba902b7L, NumberParser.parseSpanId("00f067aa0ba902b7"));
+    assertEquals(-1L, NumberParser.parseSpanId("ffffffffffffffff"));
+    assertEquals(0, NumberParser.parseSpanId("0000000000000000"));
+    assertEquals(0, NumberParser.parseSpanId("00F067AA0BA902B7"));
+    assertEquals(0, NumberParser.parseSpanId("00f067aa0ba902b"));
+    assertEquals(0, NumberParser.parseSpanId("00f067aa0ba902b7a"));
+    assertEquals(0, NumberParser.parseSpanId("00f067aa0ba902bx"));
+  }
+
+  @Test
+  public void testIsSpanId() {
+    assertTrue(NumberParser.isSpanId("00f067aa0ba902b7", 0, 16));
+    assertTrue(NumberParser.isSpanId("x.00f067aa0ba902b7", 2, 18));
+    assertFalse(NumberParser.isSpanId("00F067AA0BA902B7", 0, 16));
+    assertFalse(NumberParser.isSpanId("00f067aa0ba902b", 0, 15));
+    assertFalse(NumberParser.isSpanId("00f067aa0ba902b7a", 0, 17));
+    assertFalse(NumberParser.isSpanId("00f067aa0ba902bx", 0, 16));
+    assertFalse(NumberParser.isSpanId("abc", 0, 16));
+  }
+}
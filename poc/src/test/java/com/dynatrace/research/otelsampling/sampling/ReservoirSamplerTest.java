@@ -27,7 +27,9 @@
 package com.dynatrace.research.otelsampling.sampling;
 
 import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.*;
 import java.util.stream.IntStream;
@@ -145,4 +147,251 @@ public class ReservoirSamplerTest {
     assertFalse(
         statistics.stream().anyMatch(s -> new TTest().tTest(expectedMean, s, individualAlpha)));
   }
+
+  private static ReservoirSampler<Long> createLongSampler(int capacity, SplittableRandom random) {
+    return new ReservoirSampler<>(
+        capacity,
+        ReservoirSamplerTest::greatestSampleRateIndexGreaterThanRandomValueOfData,
+        ReservoirSamplerTest::sampleRateIndexToSampleRate,
+        random);
+  }
+
+  @Test
+  public void testMergeConsistency() {
+    SplittableRandom random = new SplittableRandom(0x4a7e3c1f9b2d5068L);
+    int capacity = 20;
+    for (int iteration = 0; iteration < 1000; ++iteration) {
+      int numInputs = 1 + random.nextInt(4);
+      List<Long> allItems = new ArrayList<>();
+      List<ReservoirSampler.MergeInput<Long>> inputs = new ArrayList<>();
+      for (int i = 0; i < numInputs; ++i) {
+        ReservoirSampler<Long> input = createLongSampler(capacity, random.split());
+        int numItems = random.nextInt(3 * capacity);
+        for (int j = 0; j < numItems; ++j) {
+          long item = random.nextLong();
+          allItems.add(item);
+          input.add(item);
+        }
+        inputs.add(input.toMergeInput());
+      }
+      ReservoirSampler<Long> merged = createLongSampler(capacity, random.split());
+      inputs.forEach(merged::merge);
+      merged.checkConsistency();
+
+      Collection<ReservoirSampler.Sample<Long>> samples = merged.getSamples();
+      assertEquals(Math.min(capacity, allItems.size()), samples.size());
+      int maxSampleRateIndex =
+          samples.stream().mapToInt(ReservoirSampler.Sample::getSampleRateIndex).max().orElse(0);
+      int minSampleRateIndex =
+          samples.stream().mapToInt(ReservoirSampler.Sample::getSampleRateIndex).min().orElse(0);
+      // if all samples have the same index, the upper part of the buffer is empty
+      int level =
+          (samples.size() == capacity && minSampleRateIndex == maxSampleRateIndex)
+              ? maxSampleRateIndex + 1
+              : maxSampleRateIndex;
+      Set<Long> sampledItems = new HashSet<>();
+      samples.forEach(sample -> sampledItems.add(sample.getItem()));
+      for (long item : allItems) {
+        if (greatestSampleRateIndexGreaterThanRandomValueOfData(item) >= level) {
+          assertTrue(sampledItems.contains(item));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBalancedSamplingAfterMerge() {
+    SplittableRandom randomGenerator = new SplittableRandom(0x17c3b5e92d0a4f68L);
+
+    double alpha = 0.01;
+    int capacity = 10;
+    int numItems = 100;
+    int numInputs = 3;
+    long numIterations = 200000;
+
+    List<StreamingStatistics> statistics =
+        Stream.generate(StreamingStatistics::new).limit(numItems).collect(toList());
+
+    for (long i = 0; i < numIterations; ++i) {
+      List<ReservoirSampler<Item>> inputs = new ArrayList<>();
+      for (int j = 0; j < numInputs; ++j) {
+        inputs.add(
+            new ReservoirSampler<>(
+                capacity,
+                Item::getMaxSampleRateIndex,
+                ReservoirSamplerTest::sampleRateIndexToSampleRate,
+                randomGenerator));
+      }
+      for (int k = 0; k < numItems; ++k) {
+        Item item = new Item(k, Long.numberOfLeadingZeros(randomGenerator.nextLong()));
+        // uneven distribution of items over inputs
+        inputs.get((k < numItems / 2) ? 0 : 1 + (k % (numInputs - 1))).add(item);
+      }
+      ReservoirSampler<Item> merged =
+          new ReservoirSampler<>(
+              capacity,
+              Item::getMaxSampleRateIndex,
+              ReservoirSamplerTest::sampleRateIndexToSampleRate,
+              randomGenerator);
+      inputs.forEach(input -> merged.merge(input.toMergeInput()));
+
+      for (ReservoirSampler.Sample<Item> sample : merged.getSamples()) {
+        statistics
+            .get(sample.getItem().getIdx())
+            .accept(sampleRateIndexToExtrapolationFactor(sample.getSampleRateIndex()));
+      }
+    }
+
+    double expectedMean = (double) numItems / (double) capacity;
+    double individualAlpha = -Math.expm1(Math.log1p(-alpha) / numItems);
+
+    assertFalse(
+        statistics.stream().anyMatch(s -> new TTest().tTest(expectedMean, s, individualAlpha)));
+  }
+
+  @Test
+  public void testUnbiasedEstimationAfterTreeWiseMergeOfSamples() {
+    SplittableRandom randomGenerator = new SplittableRandom(0x2e8f4a6c1b3d5079L);
+
+    double alpha = 0.01;
+    int capacity = 10;
+    int numItems = 100;
+    int numInputs = 4;
+    long numIterations = 100000;
+
+    List<StreamingStatistics> statistics =
+        Stream.generate(StreamingStatistics::new).limit(numItems).collect(toList());
+
+    for (long i = 0; i < numIterations; ++i) {
+      List<ReservoirSampler<Item>> inputs = new ArrayList<>();
+      for (int j = 0; j < numInputs; ++j) {
+        inputs.add(
+            new ReservoirSampler<>(
+                capacity,
+                Item::getMaxSampleRateIndex,
+                ReservoirSamplerTest::sampleRateIndexToSampleRate,
+                randomGenerator));
+      }
+      for (int k = 0; k < numItems; ++k) {
+        Item item = new Item(k, Long.numberOfLeadingZeros(randomGenerator.nextLong()));
+        inputs.get((k < numItems / 2) ? 0 : 1 + (k % (numInputs - 1))).add(item);
+      }
+      inputs.get(2).merge(inputs.get(3));
+      Collection<ReservoirSampler.Sample<Item>> left =
+          ReservoirSampler.merge(
+              capacity,
+              Item::getMaxSampleRateIndex,
+              ReservoirSamplerTest::sampleRateIndexToSampleRate,
+              randomGenerator,
+              Arrays.asList(inputs.get(0).getSamples(), inputs.get(1).getSamples()));
+      Collection<ReservoirSampler.Sample<Item>> merged =
+          ReservoirSampler.merge(
+              capacity,
+              Item::getMaxSampleRateIndex,
+              ReservoirSamplerTest::sampleRateIndexToSampleRate,
+              randomGenerator,
+              Arrays.asList(left, inputs.get(2).getSamples()));
+
+      // the inclusion probabilities may differ between inputs, as the counters are estimated,
+      // therefore the unbiasedness of the extrapolation is tested for every item
+      long[] extrapolationFactors = new long[numItems];
+      for (ReservoirSampler.Sample<Item> sample : merged) {
+        extrapolationFactors[sample.getItem().getIdx()] =
+            sampleRateIndexToExtrapolationFactor(sample.getSampleRateIndex());
+      }
+      for (int k = 0; k < numItems; ++k) {
+        statistics.get(k).accept(extrapolationFactors[k]);
+      }
+    }
+
+    double expectedMean = 1.;
+    double individualAlpha = -Math.expm1(Math.log1p(-alpha) / numItems);
+
+    assertFalse(
+        statistics.stream().anyMatch(s -> new TTest().tTest(expectedMean, s, individualAlpha)));
+  }
+
+  @Test
+  public void testBalancedSamplingWithAddAll() {
+    SplittableRandom randomGenerator = new SplittableRandom(0x5c7e9a1b3d2f4068L);
+
+    double alpha = 0.01;
+    int capacity = 10;
+    int numItems = 200;
+    long numIterations = 500000;
+
+    List<StreamingStatistics> statistics =
+        Stream.generate(StreamingStatistics::new).limit(numItems).collect(toList());
+
+    Item[] items = new Item[numItems];
+    for (long i = 0; i < numIterations; ++i) {
+      for (int k = 0; k < numItems; ++k) {
+        items[k] = new Item(k, Long.numberOfLeadingZeros(randomGenerator.nextLong()));
+      }
+      ReservoirSampler<Item> reservoirSampler =
+          new ReservoirSampler<>(
+              capacity,
+              Item::getMaxSampleRateIndex,
+              ReservoirSamplerTest::sampleRateIndexToSampleRate,
+              randomGenerator);
+      reservoirSampler.addAll(items);
+      reservoirSampler.checkConsistency();
+
+      for (ReservoirSampler.Sample<Item> sample : reservoirSampler.getSamples()) {
+        statistics
+            .get(sample.getItem().getIdx())
+            .accept(sampleRateIndexToExtrapolationFactor(sample.getSampleRateIndex()));
+      }
+    }
+
+    double expectedMean = (double) numItems / (double) capacity;
+    double individualAlpha = -Math.expm1(Math.log1p(-alpha) / numItems);
+
+    assertFalse(
+        statistics.stream().anyMatch(s -> new TTest().tTest(expectedMean, s, individualAlpha)));
+  }
+
+  @Test
+  public void testCursorAndSnapshot() {
+    SplittableRandom randomGenerator = new SplittableRandom(0x2e8d4b6a1c9f7035L);
+    int capacity = 20;
+
+    ReservoirSampler<Long> sampler =
+        new ReservoirSampler<>(
+            capacity,
+            ReservoirSamplerTest::greatestSampleRateIndexGreaterThanRandomValueOfData,
+            ReservoirSamplerTest::sampleRateIndexToSampleRate,
+            randomGenerator);
+
+    for (int i = 0; i < 10000; ++i) {
+      sampler.add(randomGenerator.nextLong());
+
+      if (i % 97 == 0) {
+        List<ReservoirSampler.Sample<Long>> samples = new ArrayList<>(sampler.getSamples());
+        assertEquals(samples.size(), sampler.getNumberOfSamples());
+
+        ReservoirSampler.Snapshot<Long> snapshot = sampler.getSnapshot();
+        assertEquals(samples.size(), snapshot.getNumberOfSamples());
+
+        ReservoirSampler<Long>.Cursor cursor = sampler.getSampleCursor();
+        for (int k = 0; k < samples.size(); ++k) {
+          assertTrue(cursor.next());
+          assertEquals(samples.get(k).getItem(), cursor.getItem());
+          assertEquals(samples.get(k).getSampleRateIndex(), cursor.getSampleRateIndex());
+          assertEquals(samples.get(k).getItem(), snapshot.getItem(k));
+          assertEquals(samples.get(k).getSampleRateIndex(), snapshot.getSampleRateIndex(k));
+        }
+        assertFalse(cursor.next());
+
+        // the snapshot is not affected by adding further items
+        for (int j = 0; j < 1000; ++j) {
+          sampler.add(randomGenerator.nextLong());
+        }
+        for (int k = 0; k < samples.size(); ++k) {
+          assertEquals(samples.get(k).getItem(), snapshot.getItem(k));
+          assertEquals(samples.get(k).getSampleRateIndex(), snapshot.getSampleRateIndex(k));
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import java.util.Collections;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import org.hipparchus.stat.inference.AlternativeHypothesis;
+import org.hipparchus.stat.inference.BinomialTest;
+import org.junit.Test;
+
+public class SamplingMetricsTest {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+
+  @Test
+  public void testDecisionCounts() {
+    SamplingMetrics samplingMetrics = new SamplingMetrics();
+    SplittableRandom random = new SplittableRandom(0x1e5a9d2c7b3f4806L);
+    AbstractConsistentSampler sampler =
+        new ConsistentFixedRateSampler(0.25) {
+          @Override
+          protected boolean generateRandomBit() {
+            return random.nextBoolean();
+          }
+
+          @Override
+          protected RecordingMode getRecordingMode() {
+            return RecordingMode.PARENT_LINK;
+          }
+
+          @Override
+          protected SamplingMetrics getSamplingMetrics() {
+            return samplingMetrics;
+          }
+        };
+
+    Context childContext =
+        Context.root()
+            .with(
+                Span.wrap(
+                    SpanContext.create(
+                        TRACE_ID,
+                        "0123456789abcdef",
+                        TraceFlags.getDefault(),
+                        TraceState.getDefault())));
+
+    int numRootSpans = 10000;
+    int numChildSpans = 3000;
+    int numSampledRootSpans = 0;
+    for (int i = 0; i < numRootSpans + numChildSpans; ++i) {
+      Context parentContext = (i < numRootSpans) ? Context.root() : childContext;
+      SamplingDecision decision =
+          sampler
+              .shouldSample(
+                  parentContext,
+                  TRACE_ID,
+                  "name",
+                  SpanKind.SERVER,
+                  Attributes.empty(),
+                  Collections.emptyList())
+              .getDecision();
+      if (i < numRootSpans && decision == SamplingDecision.RECORD_AND_SAMPLE) {
+        numSampledRootSpans += 1;
+      }
+    }
+
+    SamplingMetrics.Snapshot snapshot = samplingMetrics.snapshot();
+    assertEquals(numSampledRootSpans, snapshot.getCount(2, true, true, RecordingMode.PARENT_LINK));
+    assertEquals(
+        numRootSpans - numSampledRootSpans,
+        snapshot.getCount(2, false, true, RecordingMode.PARENT_LINK));
+    assertEquals(
+        numChildSpans,
+        snapshot.getCount(2, true, false, RecordingMode.PARENT_LINK)
+            + snapshot.getCount(2, false, false, RecordingMode.PARENT_LINK));
+    assertEquals(0, snapshot.getCount(2, true, true, RecordingMode.ANCESTOR_LINK));
+    assertEquals(numRootSpans + numChildSpans, snapshot.getCount(2));
+    assertEquals(0, snapshot.getCount(1));
+    assertEquals(numRootSpans + numChildSpans, snapshot.getCount(true) + snapshot.getCount(false));
+    assertEquals(0.25, snapshot.getExpectedSamplingRate(), 0.);
+    assertFalse(
+        new BinomialTest()
+            .binomialTest(
+                numRootSpans, numSampledRootSpans, 0.25, AlternativeHypothesis.TWO_SIDED, 0.01));
+    assertEquals(
+        numRootSpans + numChildSpans,
+        IntStream.range(0, SamplingMetrics.NUM_DURATION_BUCKETS)
+            .mapToLong(snapshot::getDurationCount)
+            .sum());
+  }
+
+  @Test
+  public void testDurationBuckets() {
+    SamplingMetrics samplingMetrics = new SamplingMetrics();
+    long[] durations = {0, 1, 2, 3, 4, 1000, Long.MAX_VALUE};
+    for (long duration : durations) {
+      samplingMetrics.record(0, true, true, RecordingMode.PARENT_LINK, duration);
+    }
+    SamplingMetrics.Snapshot snapshot = samplingMetrics.snapshot();
+    assertEquals(1, snapshot.getDurationCount(0));
+    assertEquals(1, snapshot.getDurationCount(1));
+    assertEquals(2, snapshot.getDurationCount(2));
+    assertEquals(1, snapshot.getDurationCount(3));
+    assertEquals(1, snapshot.getDurationCount(10));
+    assertEquals(1, snapshot.getDurationCount(63));
+    for (long duration : durations) {
+      int bucketIndex = 0;
+      while (duration >= SamplingMetrics.getDurationBucketUpperBoundNanos(bucketIndex)
+          && bucketIndex < 63) {
+        bucketIndex += 1;
+      }
+      assertTrue(snapshot.getDurationCount(bucketIndex) > 0);
+    }
+  }
+}
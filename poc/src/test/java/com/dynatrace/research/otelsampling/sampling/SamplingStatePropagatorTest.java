@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class SamplingStatePropagatorTest {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+  private static final String SPAN_ID_KEY = "span-id";
+
+  // propagates the span ID and the compact sampling state of a span
+  private static final class TestPropagator implements TextMapPropagator {
+
+    @Override
+    public Collection<String> fields() {
+      return Collections.singletonList(SPAN_ID_KEY);
+    }
+
+    @Override
+    public <C> void inject(Context context, C carrier, TextMapSetter<C> setter) {
+      setter.set(carrier, SPAN_ID_KEY, Span.fromContext(context).getSpanContext().getSpanId());
+    }
+
+    @Override
+    public <C> Context extract(Context context, C carrier, TextMapGetter<C> getter) {
+      String spanId = getter.get(carrier, SPAN_ID_KEY);
+      if (spanId == null) {
+        return context;
+      }
+      TraceState traceState = TraceState.getDefault();
+      String compactSamplingState =
+          getter.get(carrier, AbstractConsistentSampler.COMPACT_SAMPLING_STATE_KEY);
+      if (compactSamplingState != null) {
+        traceState =
+            TraceState.builder()
+                .put(AbstractConsistentSampler.COMPACT_SAMPLING_STATE_KEY, compactSamplingState)
+                .build();
+      }
+      return context.with(
+          Span.wrap(
+              SpanContext.createFromRemoteParent(
+                  TRACE_ID, spanId, TraceFlags.getDefault(), traceState)));
+    }
+  }
+
+  private static final TextMapGetter<Map<String, String>> GETTER =
+      new TextMapGetter<Map<String, String>>() {
+        @Override
+        public Iterable<String> keys(Map<String, String> carrier) {
+          return carrier.keySet();
+        }
+
+        @Override
+        public String get(Map<String, String> carrier, String key) {
+          return carrier.get(key);
+        }
+      };
+
+  @Test
+  public void testExtractStoresSamplingState() {
+    TextMapPropagator propagator = new SamplingStatePropagator(new TestPropagator());
+    Map<String, String> carrier = new HashMap<>();
+    carrier.put(SPAN_ID_KEY, "fedcba9876543210");
+    carrier.put(AbstractConsistentSampler.COMPACT_SAMPLING_STATE_KEY, "0703-2.0123456789abcdef");
+
+    Context context = propagator.extract(Context.root(), carrier, GETTER);
+    SamplingState samplingState = SamplingState.fromContext(context);
+    assertEquals(7, samplingState.getGeometricRandomValue());
+    assertEquals(3, samplingState.getSamplingRateExponent());
+    assertEquals(2, samplingState.getNumberDroppedAncestors());
+    assertEquals("0123456789abcdef", samplingState.getSampledAncestorSpanId());
+
+    // all children of the remote parent share the stored sampling state
+    assertSame(samplingState, SamplingState.fromContext(context));
+
+    // without the decorator, the trace state is parsed again for every child
+    Context undecoratedContext = new TestPropagator().extract(Context.root(), carrier, GETTER);
+    assertNotSame(
+        SamplingState.fromContext(undecoratedContext),
+        SamplingState.fromContext(undecoratedContext));
+  }
+
+  @Test
+  public void testExtractWithoutSamplingState() {
+    TextMapPropagator propagator = new SamplingStatePropagator(new TestPropagator());
+    Context context = Context.root();
+    assertSame(context, propagator.extract(context, Collections.emptyMap(), GETTER));
+
+    Map<String, String> carrier = Collections.singletonMap(SPAN_ID_KEY, "fedcba9876543210");
+    Context extractedContext = propagator.extract(context, carrier, GETTER);
+    assertEquals(
+        "fedcba9876543210", Span.fromContext(extractedContext).getSpanContext().getSpanId());
+    assertEquals(
+        AbstractConsistentSampler.SAMPLING_UNKNOWN_RATE_EXPONENT,
+        SamplingState.fromContext(extractedContext).getSamplingRateExponent());
+  }
+
+  @Test
+  public void testFieldsAndInjectAreDelegated() {
+    TextMapPropagator propagator = new SamplingStatePropagator(new TestPropagator());
+    assertEquals(Collections.singletonList(SPAN_ID_KEY), propagator.fields());
+
+    SpanContext spanContext =
+        SpanContext.create(
+            TRACE_ID, "fedcba9876543210", TraceFlags.getDefault(), TraceState.getDefault());
+    Context context = Context.root().with(Span.wrap(spanContext));
+    Map<String, String> carrier = new HashMap<>();
+    propagator.inject(context, carrier, Map::put);
+    assertEquals(Collections.singletonMap(SPAN_ID_KEY, "fedcba9876543210"), carrier);
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.trace.TraceStateBuilder;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javax.annotation.CheckForNull;
+import org.junit.Test;
+
+public class SamplingStateTest {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+
+  private static Context createContext(String spanId, TraceState traceState) {
+    return Context.root()
+        .with(Span.wrap(SpanContext.create(TRACE_ID, spanId, TraceFlags.getDefault(), traceState)));
+  }
+
+  @Test
+  public void testFromTraceState() {
+    TraceState traceState =
+        TraceState.builder()
+            .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "7")
+            .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "3")
+            .put(AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY, "12")
+            .put(AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY, "fedcba9876543210")
+            .build();
+
+    SamplingState samplingState = SamplingState.fromTraceState(traceState);
+    assertEquals(7, samplingState.getGeometricRandomValue());
+    assertEquals(3, samplingState.getSamplingRateExponent());
+    assertEquals(12, samplingState.getNumberDroppedAncestors());
+    assertEquals("fedcba9876543210", samplingState.getSampledAncestorSpanId());
+  }
+
+  @Test
+  public void testFromEmptyTraceState() {
+    SamplingState samplingState = SamplingState.fromTraceState(TraceState.getDefault());
+    assertEquals(
+        SamplingState.UNKNOWN_GEOMETRIC_RANDOM_VALUE, samplingState.getGeometricRandomValue());
+    assertEquals(
+        AbstractConsistentSampler.SAMPLING_UNKNOWN_RATE_EXPONENT,
+        samplingState.getSamplingRateExponent());
+    assertEquals(0, samplingState.getNumberDroppedAncestors());
+    assertNull(samplingState.getSampledAncestorSpanId());
+  }
+
+  @Test
+  public void testMalformedValues() {
+    TraceState traceState =
+        TraceState.builder()
+            .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "x7")
+            .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "99999999999999999999")
+            .put(AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY, "-1")
+            .put(AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY, "abc")
+            .build();
+
+    SamplingState samplingState = SamplingState.fromTraceState(traceState);
+    assertEquals(
+        SamplingState.UNKNOWN_GEOMETRIC_RANDOM_VALUE, samplingState.getGeometricRandomValue());
+    assertEquals(
+        AbstractConsistentSampler.SAMPLING_UNKNOWN_RATE_EXPONENT,
+        samplingState.getSamplingRateExponent());
+    assertEquals(0, samplingState.getNumberDroppedAncestors());
+    assertNull(samplingState.getSampledAncestorSpanId());
+  }
+
+  @Test
+  public void testOutOfRangeValues() {
+    TraceState traceState =
+        TraceState.builder()
+            .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "63")
+            .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "64")
+            .build();
+
+    SamplingState samplingState = SamplingState.fromTraceState(traceState);
+    assertEquals(
+        SamplingState.UNKNOWN_GEOMETRIC_RANDOM_VALUE, samplingState.getGeometricRandomValue());
+    assertEquals(
+        AbstractConsistentSampler.SAMPLING_UNKNOWN_RATE_EXPONENT,
+        samplingState.getSamplingRateExponent());
+  }
+
+  @Test
+  public void testFromContext() {
+    TraceState traceState =
+        TraceState.builder()
+            .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "7")
+            .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "3")
+            .build();
+    Context context = createContext("0123456789abcdef", traceState);
+
+    SamplingState samplingState = SamplingState.fromContext(context);
+    assertEquals(7, samplingState.getGeometricRandomValue());
+
+    // a stored sampling state is reused for the same span
+    Context contextWithSamplingState = context.with(samplingState);
+    assertSame(samplingState, SamplingState.fromContext(contextWithSamplingState));
+
+    // but ignored, if a different span has been put into the context in the meantime
+    TraceState childTraceState =
+        TraceState.builder()
+            .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "7")
+            .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "5")
+            .build();
+    Context childContext =
+        contextWithSamplingState.with(
+            Span.wrap(
+                SpanContext.create(
+                    TRACE_ID, "fedcba9876543210", TraceFlags.getDefault(), childTraceState)));
+    SamplingState childSamplingState = SamplingState.fromContext(childContext);
+    assertNotSame(samplingState, childSamplingState);
+    assertEquals(5, childSamplingState.getSamplingRateExponent());
+  }
+
+  @Test
+  public void testSamplerUsesSamplingStateFromContext() {
+    TraceState traceState =
+        TraceState.builder()
+            .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "7")
+            .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "3")
+            .build();
+    Context context = createContext("0123456789abcdef", traceState);
+    SamplingState samplingState = SamplingState.fromContext(context);
+    context = context.with(samplingState);
+    assertSame(samplingState, SamplingState.fromContext(context));
+
+    ConsistentParentRateSampler sampler = new ConsistentParentRateSampler();
+    assertEquals(7, sampler.getGeometricRandomValueFromParentOrGenerate(samplingState));
+    assertEquals(
+        3,
+        sampler.getSamplingRateExponent(
+            context,
+            samplingState,
+            TRACE_ID,
+            "name",
+            SpanKind.INTERNAL,
+            Attributes.empty(),
+            Collections.emptyList()));
+
+    // the methods that take the parent context give the same results
+    assertEquals(7, sampler.getGeometricRandomValueFromParentContextOrGenerate(context));
+    assertEquals(3, sampler.getParentSamplingRateExponentFromParentContext(context));
+    assertEquals(
+        3,
+        sampler.getSamplingRateExponent(
+            context,
+            TRACE_ID,
+            "name",
+            SpanKind.INTERNAL,
+            Attributes.empty(),
+            Collections.emptyList()));
+  }
+
+  // counts the lookups that are needed to parse the sampling state
+  private static final class CountingTraceState implements TraceState {
+    private final TraceState delegate;
+    private int numberOfLookups = 0;
+
+    private CountingTraceState(TraceState delegate) {
+      this.delegate = delegate;
+    }
+
+    @CheckForNull
+    @Override
+    public String get(String key) {
+      numberOfLookups += 1;
+      return delegate.get(key);
+    }
+
+    @Override
+    public int size() {
+      return delegate.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return delegate.isEmpty();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> consumer) {
+      delegate.forEach(consumer);
+    }
+
+    @Override
+    public Map<String, String> asMap() {
+      return delegate.asMap();
+    }
+
+    @Override
+    public TraceStateBuilder toBuilder() {
+      return delegate.toBuilder();
+    }
+  }
+
+  @Test
+  public void testSamplingStateIsParsedOncePerParent() {
+    CountingTraceState traceState =
+        new CountingTraceState(
+            TraceState.builder()
+                .put(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY, "1")
+                .put(AbstractConsistentSampler.SAMPLING_RATE_EXPONENT_KEY, "3")
+                .build());
+    Context context = createContext("0123456789abcdef", traceState);
+    // the parent rate sampler drops all children, which takes the path that needs the ancestor
+    Sampler sampler = new ConsistentParentRateSampler();
+    int numberOfChildren = 5;
+
+    SamplingState.fromTraceState(traceState);
+    int numberOfLookupsPerParse = traceState.numberOfLookups;
+    assertTrue(numberOfLookupsPerParse > 0);
+
+    // without a stored sampling state, the trace state is parsed once per child
+    traceState.numberOfLookups = 0;
+    for (int i = 0; i < numberOfChildren; ++i) {
+      sampler.shouldSample(
+          context,
+          TRACE_ID,
+          "name",
+          SpanKind.INTERNAL,
+          Attributes.empty(),
+          Collections.emptyList());
+    }
+    assertEquals(numberOfChildren * numberOfLookupsPerParse, traceState.numberOfLookups);
+
+    // with a stored sampling state, the trace state is parsed once for all children
+    traceState.numberOfLookups = 0;
+    Context contextWithSamplingState = context.with(SamplingState.fromContext(context));
+    for (int i = 0; i < numberOfChildren; ++i) {
+      SamplingResult samplingResult =
+          sampler.shouldSample(
+              contextWithSamplingState,
+              TRACE_ID,
+              "name",
+              SpanKind.INTERNAL,
+              Attributes.empty(),
+              Collections.emptyList());
+      assertEquals(SamplingDecision.DROP, samplingResult.getDecision());
+    }
+    assertEquals(numberOfLookupsPerParse, traceState.numberOfLookups);
+  }
+}
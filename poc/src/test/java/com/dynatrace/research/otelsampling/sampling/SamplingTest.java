@@ -28,6 +28,7 @@ package com.dynatrace.research.otelsampling.sampling;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.dynatrace.research.otelsampling.exporter.CollectingSpanExporter;
 import com.dynatrace.research.otelsampling.simulation.TraceUtil;
@@ -149,6 +150,11 @@ public class SamplingTest {
                 protected boolean generateRandomBit() {
                   return random.nextBoolean();
                 }
+
+                @Override
+                protected long generateRandomLong() {
+                  return random.nextLong();
+                }
               },
           Object::toString,
           collector,
@@ -169,6 +175,61 @@ public class SamplingTest {
                 numCycles, sampledAllCounter, sampleRate, AlternativeHypothesis.TWO_SIDED, alpha));
   }
 
+  @Test
+  public void testConsistentFixedRateSamplerTraceIdRandomGenerationMode() {
+
+    double alpha = 0.01;
+
+    int numCycles = 10000;
+    int numNodes = 20;
+
+    double sampleRate = 0.25;
+
+    int sampledAllCounter = 0;
+
+    TreeStructure treeStructure = TreeUtil.createBalancedBinaryTree(numNodes);
+    Tree<Integer> tree = new Tree<>(treeStructure, i -> i);
+
+    for (int cycleIdx = 0; cycleIdx < numCycles; ++cycleIdx) {
+
+      CollectingSpanExporter collector = new CollectingSpanExporter();
+
+      TraceUtil.simulate(
+          tree,
+          i ->
+              new ConsistentFixedRateSampler(sampleRate) {
+                @Override
+                protected RandomGenerationMode getRandomGenerationMode() {
+                  return RandomGenerationMode.TRACE_ID;
+                }
+              },
+          Object::toString,
+          collector,
+          cycleIdx);
+
+      int numberOfSampledSpans = collector.getSpans().size();
+
+      if (numberOfSampledSpans == numNodes) {
+        sampledAllCounter += 1;
+      } else {
+        assertEquals(0, numberOfSampledSpans);
+      }
+      assertTrue(
+          collector.getSpans().stream()
+              .allMatch(
+                  s ->
+                      s.getSpanContext()
+                              .getTraceState()
+                              .get(AbstractConsistentSampler.SAMPLING_GEOMETRIC_RANDOM_VALUE_KEY)
+                          == null));
+    }
+
+    assertFalse(
+        new BinomialTest()
+            .binomialTest(
+                numCycles, sampledAllCounter, sampleRate, AlternativeHypothesis.TWO_SIDED, alpha));
+  }
+
   @Test
   public void testIdRatioBasedSamplerInhomogeneousSamplingRates() {
 
@@ -241,6 +302,11 @@ public class SamplingTest {
                 protected boolean generateRandomBit() {
                   return random.nextBoolean();
                 }
+
+                @Override
+                protected long generateRandomLong() {
+                  return random.nextLong();
+                }
               },
           Object::toString,
           collector,
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.dynatrace.research.otelsampling.exporter.CollectingSpanExporter;
+import com.dynatrace.research.otelsampling.simulation.TraceUtil;
+import com.dynatrace.research.otelsampling.tree.Tree;
+import com.dynatrace.research.otelsampling.tree.TreeUtil;
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.*;
+import org.junit.Test;
+
+public class SamplingUtilTest {
+
+  private static Collection<SpanData> simulate(
+      Tree<Integer> tree, RecordingMode recordingMode, SplittableRandom random) {
+    double[] samplingRates =
+        random.doubles(tree.getTreeStructure().getNumberOfNodes()).map(d -> d * d).toArray();
+    CollectingSpanExporter spanExporter = new CollectingSpanExporter();
+    TraceUtil.simulate(
+        tree,
+        i ->
+            new ConsistentFixedRateSampler(samplingRates[i]) {
+              @Override
+              protected boolean generateRandomBit() {
+                return random.nextBoolean();
+              }
+
+              @Override
+              protected long generateRandomLong() {
+                return random.nextLong();
+              }
+
+              @Override
+              protected RecordingMode getRecordingMode() {
+                return recordingMode;
+              }
+            },
+        Object::toString,
+        spanExporter,
+        random.nextLong());
+    return spanExporter.getSpans();
+  }
+
+  private static void assertSameAncestorInformation(
+      Collection<SpanData> expected, Collection<SpanData> actual) {
+    assertEquals(expected.size(), actual.size());
+    Iterator<SpanData> expectedIterator = expected.iterator();
+    Iterator<SpanData> actualIterator = actual.iterator();
+    while (expectedIterator.hasNext()) {
+      SpanData expectedSpan = expectedIterator.next();
+      SpanData actualSpan = actualIterator.next();
+      assertEquals(expectedSpan.getSpanId(), actualSpan.getSpanId());
+      assertEquals(
+          SamplingUtil.getAncestorSpanId(expectedSpan), SamplingUtil.getAncestorSpanId(actualSpan));
+      assertEquals(
+          SamplingUtil.getNumberDroppedAncestors(expectedSpan),
+          SamplingUtil.getNumberDroppedAncestors(actualSpan));
+    }
+  }
+
+  @Test
+  public void testDownSampleAllLevels() {
+    SplittableRandom random = new SplittableRandom(0x4a7c1e9b3f5d2086L);
+    List<Tree<Integer>> trees =
+        Arrays.asList(
+            new Tree<>(TreeUtil.createBalancedBinaryTree(30), i -> i),
+            new Tree<>(TreeUtil.createChain(30), i -> i),
+            new Tree<>(TreeUtil.generateRandomTree(random.nextLong(), 30), i -> i));
+
+    for (RecordingMode recordingMode : RecordingMode.values()) {
+      for (Tree<Integer> tree : trees) {
+        for (int k = 0; k < 100; ++k) {
+          Collection<SpanData> spanData = simulate(tree, recordingMode, random);
+          if (spanData.isEmpty()) continue;
+
+          List<Collection<SpanData>> levels =
+              SamplingUtil.downSampleAllLevels(spanData, recordingMode);
+          assertTrue(levels.get(levels.size() - 1).isEmpty());
+
+          Collection<SpanData> expected = spanData;
+          for (Collection<SpanData> level : levels) {
+            double threshold =
+                expected.stream().mapToDouble(SamplingUtil::getSamplingRatio).min().getAsDouble();
+            expected = SamplingUtil.downSample(expected, threshold, recordingMode);
+            assertSameAncestorInformation(expected, level);
+          }
+        }
+      }
+    }
+  }
+
+  private static void assertSameSpanTable(SpanTable expected, SpanTable actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertSame(expected.getSpanData(i), actual.getSpanData(i));
+      assertEquals(expected.getSpanId(i), actual.getSpanId(i));
+      assertEquals(i, actual.indexOf(actual.getSpanData(i).getSpanId()));
+      assertEquals(expected.getAncestorIndex(i), actual.getAncestorIndex(i));
+      assertEquals(expected.getParentIndex(i), actual.getParentIndex(i));
+      assertEquals(expected.getSamplingRateExponent(i), actual.getSamplingRateExponent(i));
+      assertEquals(expected.getNumberDroppedAncestors(i), actual.getNumberDroppedAncestors(i));
+      assertEquals(expected.isRoot(i), actual.isRoot(i));
+    }
+  }
+
+  @Test
+  public void testDownSampleAllLevelsOfSpanTable() {
+    SplittableRandom random = new SplittableRandom(0x7b3e0d95c8a1f246L);
+    Tree<Integer> tree = new Tree<>(TreeUtil.generateRandomTree(random.nextLong(), 30), i -> i);
+
+    for (RecordingMode recordingMode : RecordingMode.values()) {
+      for (int k = 0; k < 100; ++k) {
+        Collection<SpanData> spanData = simulate(tree, recordingMode, random);
+
+        // the derived span tables are equal to span tables built from the down-sampled span data
+        List<SpanTable> levels =
+            SamplingUtil.downSampleAllLevels(new SpanTable(spanData), recordingMode);
+        List<Collection<SpanData>> expectedLevels =
+            SamplingUtil.downSampleAllLevels(spanData, recordingMode);
+        assertEquals(expectedLevels.size(), levels.size());
+        for (int l = 0; l < levels.size(); ++l) {
+          SpanTable level = levels.get(l);
+          assertSameAncestorInformation(expectedLevels.get(l), level.getSpans());
+          assertSameSpanTable(new SpanTable(level.getSpans()), level);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDownSampleAgainstAncestorWalk() {
+    SplittableRandom random = new SplittableRandom(0x1d6b8f3a5c7e9042L);
+    List<Tree<Integer>> trees =
+        Arrays.asList(
+            new Tree<>(TreeUtil.createChain(50), i -> i),
+            new Tree<>(TreeUtil.generateRandomTree(random.nextLong(), 50), i -> i));
+
+    for (RecordingMode recordingMode : RecordingMode.values()) {
+      for (Tree<Integer> tree : trees) {
+        for (int k = 0; k < 100; ++k) {
+          Collection<SpanData> spanData = simulate(tree, recordingMode, random);
+          if (spanData.isEmpty()) continue;
+
+          Map<String, SpanData> index = TraceUtil.createSpanDataIndex(spanData);
+          double threshold =
+              spanData.stream()
+                  .mapToDouble(SamplingUtil::getSamplingRatio)
+                  .skip(random.nextInt(spanData.size()))
+                  .findFirst()
+                  .getAsDouble();
+
+          Collection<SpanData> downSampled =
+              SamplingUtil.downSample(spanData, threshold, recordingMode);
+          assertEquals(
+              spanData.stream().filter(s -> SamplingUtil.getSamplingRatio(s) > threshold).count(),
+              downSampled.size());
+
+          for (SpanData s : downSampled) {
+            if (s.getParentSpanId().equals(SpanId.getInvalid())) continue;
+            // walk up the original ancestors across all dropped spans
+            SpanData ancestor = index.get(SamplingUtil.getAncestorSpanId(index.get(s.getSpanId())));
+            int numberDroppedAncestors =
+                SamplingUtil.getNumberDroppedAncestors(index.get(s.getSpanId()));
+            while (ancestor != null && !(SamplingUtil.getSamplingRatio(ancestor) > threshold)) {
+              numberDroppedAncestors += SamplingUtil.getNumberDroppedAncestors(ancestor);
+              ancestor = index.get(SamplingUtil.getAncestorSpanId(ancestor));
+            }
+            String expectedAncestorSpanId =
+                (ancestor == null)
+                    ? SpanId.getInvalid()
+                    : (recordingMode.collectAncestorLink()
+                        ? ancestor.getSpanId()
+                        : s.getParentSpanId());
+            assertEquals(expectedAncestorSpanId, SamplingUtil.getAncestorSpanId(s));
+            assertEquals(
+                recordingMode.collectAncestorDistance() ? 0 : numberDroppedAncestors,
+                SamplingUtil.getNumberDroppedAncestors(s));
+
+            // the trace state of the parent span context is consistent with the accessors
+            TraceState traceState = s.getParentSpanContext().getTraceState();
+            String sampledAncestorSpanId = SamplingState.parseSampledAncestorSpanId(traceState);
+            assertEquals(
+                expectedAncestorSpanId,
+                (sampledAncestorSpanId != null) ? sampledAncestorSpanId : s.getParentSpanId());
+            assertEquals(
+                SamplingUtil.getNumberDroppedAncestors(s),
+                SamplingState.parseNumberDroppedAncestors(traceState));
+          }
+        }
+      }
+    }
+  }
+}
@@ -208,4 +208,65 @@ public class Scenario1Test {
 
     assertEquals(expected0, TreeUtil.printTree(trees.get(0), SPAN_DATA_TO_STRING_MAPPER, 4, "\n"));
   }
+
+  @Test
+  public void testSamplingAncestorLinkAndDistanceModeWithCompactEncoding() {
+
+    int numNodes = 20;
+
+    TreeStructure treeStructure = TreeUtil.createBalancedBinaryTree(numNodes);
+    Tree<Integer> tree = new Tree<>(treeStructure, i -> i);
+
+    CollectingSpanExporter collector = new CollectingSpanExporter();
+
+    TraceUtil.simulate(
+        tree,
+        i ->
+            new ConsistentFixedRateSampler((i == 1 || i == 3) ? 0. : 1.) {
+              @Override
+              protected RecordingMode getRecordingMode() {
+                return RecordingMode.ANCESTOR_LINK_AND_DISTANCE;
+              }
+
+              @Override
+              protected TraceStateEncoding getTraceStateEncoding() {
+                return TraceStateEncoding.COMPACT;
+              }
+            },
+        Object::toString,
+        collector,
+        0);
+
+    List<Tree<SpanData>> trees = TraceUtil.extractTrees(collector.getSpans());
+
+    assertEquals(1, trees.size());
+
+    String expected0 =
+        "\n"
+            + "c2f5d114b285a33d span@0\n"
+            + "|---?\n"
+            + "|   '---?\n"
+            + "|       '---482ee1d25a6947d7 span@8\n"
+            + "|           |---950cdeabf1006da2 span@18\n"
+            + "|           '---6b34073d1301e31e span@17\n"
+            + "|---?\n"
+            + "|   '---?\n"
+            + "|       '---a07d5834d59b9a32 span@7\n"
+            + "|           |---074e22e025c542a2 span@16\n"
+            + "|           '---28a82d1d24b1d7ff span@15\n"
+            + "|---?\n"
+            + "|   '---75fe54f3f1c96514 span@4\n"
+            + "|       |---15d635f0effb2ca0 span@10\n"
+            + "|       '---c196d4a52e3ea1c2 span@9\n"
+            + "|           '---5167a27d0828837e span@19\n"
+            + "'---9908e9ccec7d3723 span@2\n"
+            + "    |---ef378a8550a7720a span@6\n"
+            + "    |   |---e3fd83da40ab4c7f span@14\n"
+            + "    |   '---99308b6186f2d0c1 span@13\n"
+            + "    '---c5fa08bd46d5e088 span@5\n"
+            + "        |---39c7a1aa48b5a7f0 span@12\n"
+            + "        '---bdbc1babc3bcb4e6 span@11";
+
+    assertEquals(expected0, TreeUtil.printTree(trees.get(0), SPAN_DATA_TO_STRING_MAPPER, 4, "\n"));
+  }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.dynatrace.research.otelsampling.exporter.CollectingSpanExporter;
+import com.dynatrace.research.otelsampling.simulation.TraceUtil;
+import com.dynatrace.research.otelsampling.tree.Tree;
+import com.dynatrace.research.otelsampling.tree.TreeUtil;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class SpanTableTest {
+
+  @Test
+  public void testConsistencyWithSpanData() {
+    SplittableRandom random = new SplittableRandom(0x6f2a9c4e1b8d3057L);
+    Tree<Integer> tree = new Tree<>(TreeUtil.generateRandomTree(random.nextLong(), 100), i -> i);
+
+    for (RecordingMode recordingMode : RecordingMode.values()) {
+      CollectingSpanExporter spanExporter = new CollectingSpanExporter();
+      TraceUtil.simulate(
+          tree,
+          i ->
+              new ConsistentFixedRateSampler(0.5) {
+                @Override
+                protected boolean generateRandomBit() {
+                  return random.nextBoolean();
+                }
+
+                @Override
+                protected long generateRandomLong() {
+                  return random.nextLong();
+                }
+
+                @Override
+                protected RecordingMode getRecordingMode() {
+                  return recordingMode;
+                }
+              },
+          Object::toString,
+          spanExporter,
+          random.nextLong());
+      List<SpanData> spanData = spanExporter.getSpans();
+      Map<String, SpanData> index = TraceUtil.createSpanDataIndex(spanData);
+
+      SpanTable spanTable = new SpanTable(spanData);
+      assertEquals(spanData.size(), spanTable.size());
+      for (int i = 0; i < spanTable.size(); ++i) {
+        SpanData span = spanData.get(i);
+        assertEquals(span, spanTable.getSpanData(i));
+        assertEquals(i, spanTable.indexOf(span.getSpanId()));
+        assertEquals(i, spanTable.indexOf(spanTable.getSpanId(i)));
+
+        SpanData ancestor = index.get(SamplingUtil.getAncestorSpanId(span));
+        int ancestorIndex = spanTable.getAncestorIndex(i);
+        assertEquals(
+            ancestor, (ancestorIndex != SpanTable.NO_INDEX) ? spanData.get(ancestorIndex) : null);
+        SpanData parent = index.get(span.getParentSpanId());
+        int parentIndex = spanTable.getParentIndex(i);
+        assertEquals(
+            parent, (parentIndex != SpanTable.NO_INDEX) ? spanData.get(parentIndex) : null);
+
+        assertEquals(
+            SamplingUtil.getNumberDroppedAncestors(span), spanTable.getNumberDroppedAncestors(i));
+        assertEquals(SamplingUtil.getSamplingRatio(span), spanTable.getSamplingRatio(i), 0.);
+        assertEquals(span.getParentSpanId().equals(SpanId.getInvalid()), spanTable.isRoot(i));
+      }
+      assertEquals(SpanTable.NO_INDEX, spanTable.indexOf(SpanId.getInvalid()));
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    SpanTable spanTable = new SpanTable(Collections.emptyList());
+    assertEquals(0, spanTable.size());
+    assertEquals(SpanTable.NO_INDEX, spanTable.indexOf("00f067aa0ba902b7"));
+  }
+
+  private static SpanData createSpanData(String spanId, String parentSpanId) {
+    SpanData spanData = Mockito.mock(SpanData.class);
+    Mockito.when(spanData.getSpanId()).thenReturn(spanId);
+    Mockito.when(spanData.getParentSpanId()).thenReturn(parentSpanId);
+    Mockito.when(spanData.getSpanContext()).thenReturn(SpanContext.getInvalid());
+    Mockito.when(spanData.getParentSpanContext()).thenReturn(SpanContext.getInvalid());
+    return spanData;
+  }
+
+  @Test
+  public void testMalformedSpanIds() {
+    SpanTable spanTable =
+        new SpanTable(
+            Arrays.asList(
+                createSpanData("00f067aa0ba902b7", SpanId.getInvalid()),
+                createSpanData("ABCDEF0123456789", "00f067aa0ba902b7"),
+                createSpanData("xyz", "ABCDEF0123456789"),
+                createSpanData("0123456789abcdef", "xyz"),
+                createSpanData("53ce929d0e0e4736", "not-a-span-id")));
+
+    // malformed span IDs are neither confused with each other nor with the invalid span ID
+    assertEquals(1, spanTable.indexOf("ABCDEF0123456789"));
+    assertEquals(2, spanTable.indexOf("xyz"));
+    assertEquals(SpanTable.NO_INDEX, spanTable.indexOf("abcdef0123456789"));
+    assertEquals(SpanTable.NO_INDEX, spanTable.indexOf("not-a-span-id"));
+    assertEquals(SpanTable.NO_INDEX, spanTable.indexOf(SpanId.getInvalid()));
+    assertEquals(0, spanTable.getSpanId(1));
+
+    assertEquals(SpanTable.NO_INDEX, spanTable.getParentIndex(0));
+    assertEquals(0, spanTable.getParentIndex(1));
+    assertEquals(1, spanTable.getParentIndex(2));
+    assertEquals(2, spanTable.getParentIndex(3));
+    assertEquals(SpanTable.NO_INDEX, spanTable.getParentIndex(4));
+    assertEquals(2, spanTable.getAncestorIndex(3));
+    assertTrue(spanTable.isRoot(0));
+    assertFalse(spanTable.isRoot(4));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDuplicateMalformedSpanIds() {
+    new SpanTable(
+        Arrays.asList(
+            createSpanData("xyz", SpanId.getInvalid()),
+            createSpanData("xyz", SpanId.getInvalid())));
+  }
+}
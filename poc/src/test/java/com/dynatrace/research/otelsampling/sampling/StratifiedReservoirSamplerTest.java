@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.Sample;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SplittableRandom;
+import org.junit.Test;
+
+public class StratifiedReservoirSamplerTest {
+
+  private static final class Item {
+    private final String key;
+    private final long value;
+
+    private Item(String key, long value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    private String getKey() {
+      return key;
+    }
+
+    private int getGreatestSampleRateIndex() {
+      return Long.numberOfLeadingZeros(value);
+    }
+  }
+
+  private static StratifiedReservoirSampler<String, Item> createSampler(
+      int capacity, int maxNumberOfStrata) {
+    return new StratifiedReservoirSampler<>(
+        capacity,
+        maxNumberOfStrata,
+        "overflow",
+        Item::getKey,
+        Item::getGreatestSampleRateIndex,
+        i -> 1. / (1L << i),
+        new SplittableRandom(0x0c4e9a2f6b8d1357L));
+  }
+
+  @Test
+  public void testRareKeysAreNotCrowdedOut() {
+    SplittableRandom random = new SplittableRandom(0x7e2a4c6b8d0f1359L);
+    StratifiedReservoirSampler<String, Item> sampler = createSampler(70, 6);
+
+    for (int i = 0; i < 10000; ++i) {
+      sampler.add(new Item("frequent", random.nextLong()));
+      if (i % 2000 == 0) {
+        for (int k = 0; k < 5; ++k) {
+          sampler.add(new Item("rare" + k, random.nextLong()));
+        }
+      }
+    }
+    assertEquals(6, sampler.getNumberOfStrata());
+
+    Map<String, Collection<Sample<Item>>> samples = sampler.getSamplesAndReset();
+    assertEquals(6, samples.size());
+    assertEquals(10, samples.get("frequent").size());
+    for (int k = 0; k < 5; ++k) {
+      Collection<Sample<Item>> rareSamples = samples.get("rare" + k);
+      assertEquals(5, rareSamples.size());
+      assertTrue(rareSamples.stream().allMatch(s -> s.getSampleRateIndex() == 0));
+    }
+  }
+
+  @Test
+  public void testOverflowAndEviction() {
+    SplittableRandom random = new SplittableRandom(0x1f3b5d7e9a2c4068L);
+    StratifiedReservoirSampler<String, Item> sampler = createSampler(30, 2);
+
+    sampler.add(new Item("a", random.nextLong()));
+    sampler.add(new Item("b", random.nextLong()));
+    sampler.add(new Item("c", random.nextLong()));
+    sampler.add(new Item("d", random.nextLong()));
+    assertEquals(2, sampler.getNumberOfStrata());
+
+    Map<String, Collection<Sample<Item>>> samples = sampler.getSamplesAndReset();
+    assertEquals(3, samples.size());
+    assertEquals(1, samples.get("a").size());
+    assertEquals(1, samples.get("b").size());
+    assertEquals(2, samples.get("overflow").size());
+
+    // stratum "b" is idle and evicted, which makes room for "c"
+    sampler.add(new Item("a", random.nextLong()));
+    assertTrue(sampler.getSamplesAndReset().containsKey("a"));
+    assertEquals(1, sampler.getNumberOfStrata());
+    sampler.add(new Item("c", random.nextLong()));
+    assertEquals(2, sampler.getNumberOfStrata());
+
+    samples = sampler.getSamplesAndReset();
+    assertEquals(1, samples.size());
+    assertEquals(1, samples.get("c").size());
+    assertTrue(sampler.getSamplesAndReset().isEmpty());
+    assertEquals(0, sampler.getNumberOfStrata());
+  }
+
+  private static void addItems(
+      StratifiedReservoirSampler<String, Item> sampler, String key, SplittableRandom random) {
+    for (int i = 0; i < 1000; ++i) {
+      sampler.add(new Item(key, random.nextLong()));
+    }
+  }
+
+  private static Map<String, Collection<Sample<Item>>> getSamplesAndReset(
+      StratifiedReservoirSampler<String, Item> sampler, int capacity) {
+    assertTrue(sampler.getAllocatedCapacity() <= capacity);
+    Map<String, Collection<Sample<Item>>> samples = sampler.getSamplesAndReset();
+    assertTrue(sampler.getAllocatedCapacity() <= capacity);
+    return samples;
+  }
+
+  @Test
+  public void testCapacityIsSharedByActiveStrata() {
+    SplittableRandom random = new SplittableRandom(0x5a8c2e4f6d0b1973L);
+    int capacity = 100;
+    StratifiedReservoirSampler<String, Item> sampler = createSampler(capacity, 9);
+
+    // new strata get the share they would have if all strata were in use
+    addItems(sampler, "a", random);
+    assertEquals(10, getSamplesAndReset(sampler, capacity).get("a").size());
+
+    // the capacity is split between "a" and the overflow stratum, except for the share of one new
+    // stratum that is kept free for "b"
+    addItems(sampler, "a", random);
+    addItems(sampler, "b", random);
+    Map<String, Collection<Sample<Item>>> samples = getSamplesAndReset(sampler, capacity);
+    assertEquals(45, samples.get("a").size());
+    assertEquals(10, samples.get("b").size());
+
+    // the capacity is split between "a", "b" and the overflow stratum
+    addItems(sampler, "a", random);
+    addItems(sampler, "b", random);
+    samples = getSamplesAndReset(sampler, capacity);
+    assertEquals(30, samples.get("a").size());
+    assertEquals(30, samples.get("b").size());
+
+    // the capacity of the evicted stratum "b" is given back after the next call
+    addItems(sampler, "a", random);
+    assertEquals(30, getSamplesAndReset(sampler, capacity).get("a").size());
+    assertEquals(1, sampler.getNumberOfStrata());
+    addItems(sampler, "a", random);
+    addItems(sampler, "c", random);
+    samples = getSamplesAndReset(sampler, capacity);
+    assertEquals(45, samples.get("a").size());
+    assertEquals(10, samples.get("c").size());
+
+    // "e" does not fit into the capacity and goes to the overflow stratum
+    addItems(sampler, "a", random);
+    addItems(sampler, "c", random);
+    addItems(sampler, "d", random);
+    addItems(sampler, "e", random);
+    assertEquals(3, sampler.getNumberOfStrata());
+    samples = getSamplesAndReset(sampler, capacity);
+    assertEquals(30, samples.get("a").size());
+    assertEquals(30, samples.get("c").size());
+    assertEquals(10, samples.get("d").size());
+    assertEquals(30, samples.get("overflow").size());
+
+    // the shares of all strata that are not in use were kept free, so "e" gets a stratum
+    addItems(sampler, "a", random);
+    addItems(sampler, "c", random);
+    addItems(sampler, "d", random);
+    addItems(sampler, "e", random);
+    assertEquals(4, sampler.getNumberOfStrata());
+    samples = getSamplesAndReset(sampler, capacity);
+    assertEquals(4, samples.size());
+    assertEquals(10, samples.get("e").size());
+    assertEquals(90, sampler.getAllocatedCapacity());
+  }
+}
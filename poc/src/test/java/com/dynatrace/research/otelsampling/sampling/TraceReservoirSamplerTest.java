@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.dynatrace.research.otelsampling.exporter.CollectingSpanExporter;
+import com.dynatrace.research.otelsampling.simulation.TraceUtil;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import org.junit.Test;
+
+public class TraceReservoirSamplerTest {
+
+  @Test
+  public void testTraceReservoirSampler() {
+    int spanCapacity = 200;
+    SplittableRandom random = new SplittableRandom(0x6b1d3f5a7c9e2048L);
+
+    CollectingSpanExporter exporter = new CollectingSpanExporter();
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(new ConsistentFixedRateSampler(1.))
+            .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+            .build();
+    Tracer tracer = tracerProvider.get("test");
+    for (int i = 0; i < 1000; ++i) {
+      Span root = tracer.spanBuilder("root").startSpan();
+      int numChildren = random.nextInt(10);
+      for (int j = 0; j < numChildren; ++j) {
+        tracer.spanBuilder("child").setParent(Context.root().with(root)).startSpan().end();
+      }
+      root.end();
+    }
+    List<SpanData> allSpans = exporter.getSpans();
+    Map<String, Long> numSpansByTraceId =
+        allSpans.stream().collect(groupingBy(SpanData::getTraceId, counting()));
+
+    TraceReservoirSampler sampler = new TraceReservoirSampler(spanCapacity);
+    allSpans.forEach(sampler::add);
+
+    List<SpanData> spans = sampler.getSpans();
+    assertTrue(spans.size() <= spanCapacity);
+    assertEquals(spans.size(), sampler.getNumberOfSpans());
+    assertTrue(sampler.getSampleRateIndex() > 0);
+
+    // all spans of traces with a sufficiently large geometric random value are kept
+    Map<String, Long> numKeptSpansByTraceId =
+        spans.stream().collect(groupingBy(SpanData::getTraceId, counting()));
+    assertEquals(numKeptSpansByTraceId.size(), sampler.getNumberOfTraces());
+    for (SpanData span : allSpans) {
+      boolean expectedKept =
+          SamplingUtil.getGeometricRandomValue(span) >= sampler.getSampleRateIndex();
+      assertEquals(expectedKept, numKeptSpansByTraceId.containsKey(span.getTraceId()));
+    }
+    numKeptSpansByTraceId.forEach(
+        (traceId, numSpans) -> assertEquals(numSpansByTraceId.get(traceId), numSpans));
+
+    // every kept trace is a single tree
+    assertEquals(sampler.getNumberOfTraces(), TraceUtil.extractTrees(spans).size());
+  }
+}
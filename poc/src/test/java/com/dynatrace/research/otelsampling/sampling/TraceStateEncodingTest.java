@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import java.util.Collections;
+import org.junit.Test;
+
+// compares the tracestate header sizes of both encodings for the scenario of
+// TraceStateEncodingBenchmark, a span whose parent and grandparent were dropped
+public class TraceStateEncodingTest {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+  private static final String ROOT_SPAN_ID = "1111111111111111";
+  private static final String PARENT_SPAN_ID = "2222222222222222";
+
+  private static Sampler createSampler(double samplingRatio, TraceStateEncoding encoding) {
+    return new ConsistentFixedRateSampler(samplingRatio) {
+      @Override
+      protected int getGeometricRandomValueFromParentOrGenerate(SamplingState parentSamplingState) {
+        return 1;
+      }
+
+      @Override
+      protected RecordingMode getRecordingMode() {
+        return RecordingMode.ANCESTOR_LINK_AND_DISTANCE;
+      }
+
+      @Override
+      protected TraceStateEncoding getTraceStateEncoding() {
+        return encoding;
+      }
+    };
+  }
+
+  private static Context createContext(String spanId, TraceState traceState) {
+    return Context.root()
+        .with(Span.wrap(SpanContext.create(TRACE_ID, spanId, TraceFlags.getDefault(), traceState)));
+  }
+
+  private static TraceState sample(Sampler sampler, Context parentContext) {
+    TraceState parentTraceState = Span.fromContext(parentContext).getSpanContext().getTraceState();
+    return sampler
+        .shouldSample(
+            parentContext,
+            TRACE_ID,
+            "name",
+            SpanKind.INTERNAL,
+            Attributes.empty(),
+            Collections.emptyList())
+        .getUpdatedTraceState(parentTraceState);
+  }
+
+  private static TraceState getTraceState(TraceStateEncoding encoding) {
+    Sampler sampler = createSampler(0., encoding);
+    TraceState rootTraceState = sample(createSampler(1., encoding), Context.root());
+    TraceState parentTraceState = sample(sampler, createContext(ROOT_SPAN_ID, rootTraceState));
+    return sample(sampler, createContext(PARENT_SPAN_ID, parentTraceState));
+  }
+
+  // the length of the tracestate header as serialized by the W3C trace context propagator
+  private static int getHeaderLength(TraceState traceState) {
+    StringBuilder sb = new StringBuilder();
+    traceState.forEach(
+        (key, value) -> {
+          if (sb.length() > 0) {
+            sb.append(',');
+          }
+          sb.append(key).append('=').append(value);
+        });
+    return sb.length();
+  }
+
+  @Test
+  public void testHeaderLength() {
+    TraceState verboseTraceState = getTraceState(TraceStateEncoding.VERBOSE);
+    assertEquals(
+        "2", verboseTraceState.get(AbstractConsistentSampler.NUMBER_DROPPED_ANCESTORS_KEY));
+    assertEquals(
+        ROOT_SPAN_ID,
+        verboseTraceState.get(AbstractConsistentSampler.SAMPLED_ANCESTOR_SPAN_ID_KEY));
+    assertEquals(135, getHeaderLength(verboseTraceState));
+
+    TraceState compactTraceState = getTraceState(TraceStateEncoding.COMPACT);
+    assertEquals(
+        "013f-2." + ROOT_SPAN_ID,
+        compactTraceState.get(AbstractConsistentSampler.COMPACT_SAMPLING_STATE_KEY));
+    assertEquals(26, getHeaderLength(compactTraceState));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012-2021 Dynatrace LLC. All rights reserved.
+ *
+ * This software and associated documentation files (the "Software")
+ * are being made available by Dynatrace LLC for purposes of
+ * illustrating the implementation of certain algorithms which have
+ * been published by Dynatrace LLC. Permission is hereby granted,
+ * free of charge, to any person obtaining a copy of the Software,
+ * to view and use the Software for internal, non-productive,
+ * non-commercial purposes only – the Software may not be used to
+ * process live data or distributed, sublicensed, modified and/or
+ * sold either alone or as part of or in combination with any other
+ * software.
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+package com.dynatrace.research.otelsampling.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.dynatrace.research.otelsampling.sampling.ReservoirSampler.Sample;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class WindowedReservoirSamplerTest {
+
+  private static int greatestSampleRateIndexGreaterThanRandomValueOfData(long l) {
+    return Long.numberOfLeadingZeros(l);
+  }
+
+  private static double sampleRateIndexToSampleRate(int i) {
+    return 1. / (1L << i);
+  }
+
+  private static WindowedReservoirSampler<Long> createSampler(int capacity, long seed) {
+    return new WindowedReservoirSampler<>(
+        capacity,
+        WindowedReservoirSamplerTest::greatestSampleRateIndexGreaterThanRandomValueOfData,
+        WindowedReservoirSamplerTest::sampleRateIndexToSampleRate,
+        new SplittableRandom(seed));
+  }
+
+  @Test
+  public void testConcurrentAdd() throws Exception {
+    int capacity = 50;
+    int numThreads = 4;
+    int numItemsPerThread = 10000;
+
+    WindowedReservoirSampler<Long> sampler = createSampler(capacity, 0x2b6e1d9a4c7f0385L);
+
+    Set<Long> allItems = ConcurrentHashMap.newKeySet();
+    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; ++t) {
+        SplittableRandom random = new SplittableRandom(t);
+        futures.add(
+            executorService.submit(
+                () -> {
+                  for (int i = 0; i < numItemsPerThread; ++i) {
+                    long item = random.nextLong();
+                    allItems.add(item);
+                    sampler.add(item);
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+
+    Collection<Sample<Long>> samples = sampler.getSamplesAndReset();
+    assertEquals(capacity, samples.size());
+
+    int maxSampleRateIndex = samples.stream().mapToInt(Sample::getSampleRateIndex).max().getAsInt();
+    Set<Long> sampledItems = new HashSet<>();
+    for (Sample<Long> sample : samples) {
+      assertTrue(allItems.contains(sample.getItem()));
+      assertTrue(
+          greatestSampleRateIndexGreaterThanRandomValueOfData(sample.getItem())
+              >= sample.getSampleRateIndex());
+      assertTrue(sampledItems.add(sample.getItem()));
+    }
+    for (long item : allItems) {
+      if (greatestSampleRateIndexGreaterThanRandomValueOfData(item) > maxSampleRateIndex) {
+        assertTrue(sampledItems.contains(item));
+      }
+    }
+    assertTrue(sampler.getSamplesAndReset().isEmpty());
+  }
+
+  @Test
+  public void testGetSamplesAndResetDoesNotLoseItems() throws Exception {
+    int numThreads = 4;
+    int numItemsPerThread = 10000;
+    // the capacity is large enough to keep all items
+    int capacity = numThreads * numItemsPerThread;
+
+    WindowedReservoirSampler<Long> sampler = createSampler(capacity, 0x7c3a05e9d1f2b864L);
+
+    List<Long> sampledItems = new ArrayList<>();
+    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; ++t) {
+        long offset = (long) t * numItemsPerThread;
+        futures.add(
+            executorService.submit(
+                () -> {
+                  for (long i = 0; i < numItemsPerThread; ++i) {
+                    sampler.add(offset + i);
+                  }
+                }));
+      }
+      // windows are closed while items are added
+      while (!futures.stream().allMatch(Future::isDone)) {
+        sampler.getSamplesAndReset().forEach(sample -> sampledItems.add(sample.getItem()));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+    sampler.getSamplesAndReset().forEach(sample -> sampledItems.add(sample.getItem()));
+
+    // every item is part of exactly one window
+    assertEquals(numThreads * numItemsPerThread, sampledItems.size());
+    assertEquals(numThreads * numItemsPerThread, new HashSet<>(sampledItems).size());
+    assertTrue(sampler.getSamplesAndReset().isEmpty());
+  }
+
+  @Test
+  public void testMayAccept() {
+    int capacity = 10;
+    WindowedReservoirSampler<Long> sampler = createSampler(capacity, 0x4f8d2a6c0e1b3957L);
+
+    assertTrue(sampler.mayAccept(0));
+
+    // items with greatest sample rate index 5 lift the level of the reservoir to 6
+    long item = 1L << (63 - 5);
+    for (int i = 0; i < 100 * capacity; ++i) {
+      sampler.add(item);
+    }
+    assertFalse(sampler.mayAccept(0));
+    assertFalse(sampler.mayAccept(4));
+    assertTrue(sampler.mayAccept(5));
+
+    // the reservoir of the next window is empty
+    assertEquals(capacity, sampler.getSamplesAndReset().size());
+    assertTrue(sampler.mayAccept(0));
+  }
+
+  @Test
+  public void testReservoirsOfTerminatedThreadsAreReleased() throws Exception {
+    WindowedReservoirSampler<Long> sampler = createSampler(10, 0x1a9e7c3f5b0d2468L);
+
+    Thread thread = new Thread(() -> sampler.add(1L));
+    thread.start();
+    thread.join();
+    assertEquals(1, sampler.getNumberOfThreads());
+
+    assertEquals(1, sampler.getSamplesAndReset().size());
+    assertEquals(0, sampler.getNumberOfThreads());
+  }
+}
@@ -27,10 +27,22 @@
 package com.dynatrace.research.otelsampling.simulation;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import com.dynatrace.research.otelsampling.exporter.CollectingSpanExporter;
+import com.dynatrace.research.otelsampling.sampling.ConsistentFixedRateSampler;
+import com.dynatrace.research.otelsampling.sampling.SamplingState;
 import com.dynatrace.research.otelsampling.simulation.InstrumentedService.CallContext;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
 import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
 
@@ -67,4 +79,70 @@ public class InstrumentedServiceImplTest {
     assertEquals(span1.getSpanId(), span2.getParentSpanId());
     assertEquals(span1.getSpanId(), span3.getParentSpanId());
   }
+
+  @Test
+  public void testSetSampler() {
+
+    CollectingSpanExporter exporter = new CollectingSpanExporter();
+
+    InstrumentedServiceImpl instrumentedService = new InstrumentedServiceImpl("id", 0, exporter);
+
+    try (CallContext callContext = instrumentedService.call(null)) {
+      assertTrue(callContext.getSpanContext().isSampled());
+    }
+    instrumentedService.setSampler(Sampler.alwaysOff());
+    try (CallContext callContext = instrumentedService.call(null)) {
+      assertFalse(callContext.getSpanContext().isSampled());
+    }
+    instrumentedService.setSampler(Sampler.alwaysOn());
+    try (CallContext callContext = instrumentedService.call(null)) {
+      assertTrue(callContext.getSpanContext().isSampled());
+    }
+
+    assertEquals(2, exporter.getSpans().size());
+  }
+
+  @Test
+  public void testSamplingStateIsParsedOncePerParent() {
+
+    CollectingSpanExporter exporter = new CollectingSpanExporter();
+
+    InstrumentedServiceImpl parentService = new InstrumentedServiceImpl("parent", 0, exporter);
+    InstrumentedServiceImpl childService = new InstrumentedServiceImpl("child", 0, exporter);
+    parentService.setSampler(new ConsistentFixedRateSampler(1.));
+
+    List<SamplingState> samplingStates = new ArrayList<>();
+    childService.setSampler(
+        new Sampler() {
+          @Override
+          public SamplingResult shouldSample(
+              Context parentContext,
+              String traceId,
+              String name,
+              SpanKind spanKind,
+              Attributes attributes,
+              List<LinkData> parentLinks) {
+            samplingStates.add(SamplingState.fromContext(parentContext));
+            return SamplingResult.recordAndSample();
+          }
+
+          @Override
+          public String getDescription() {
+            return "RecordingSampler";
+          }
+        });
+
+    try (CallContext parentCallContext = parentService.call(null)) {
+      for (int i = 0; i < 3; ++i) {
+        try (CallContext childCallContext = childService.call(parentCallContext)) {
+          /* empty by purpose */
+        }
+      }
+    }
+
+    assertEquals(3, samplingStates.size());
+    assertEquals(0, samplingStates.get(0).getSamplingRateExponent());
+    assertSame(samplingStates.get(0), samplingStates.get(1));
+    assertSame(samplingStates.get(0), samplingStates.get(2));
+  }
 }